@@ -26,12 +26,14 @@ import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Set;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.grid.agent.sample.SampleAgent;
+import org.grid.protocol.BinaryCodec;
 import org.grid.protocol.Message;
+import org.grid.protocol.MessageQueue;
 import org.grid.protocol.Neighborhood;
 import org.grid.protocol.ProtocolSocket;
+import org.grid.protocol.Threads;
 import org.grid.protocol.Message.Direction;
 import org.grid.protocol.Message.ReceiveMessage;
 import org.grid.protocol.Message.StateMessage;
@@ -59,6 +61,8 @@ public abstract class Agent {
 	
 	private static String passphraseOverride = null;
 	
+	private static boolean legacyProtocol = Boolean.getBoolean("org.grid.protocol.legacy");
+	
 	public static class ProxyClassLoader extends ClassLoader {
 		
 		private Set<String> protectedClassPrefixes = new HashSet<String>();
@@ -142,7 +146,7 @@ public abstract class Agent {
 	private static class ClientProtocolSocket extends ProtocolSocket implements
 			Runnable {
 
-		private ConcurrentLinkedQueue<Message> inbox = new ConcurrentLinkedQueue<Message>();
+		private MessageQueue inbox = new MessageQueue(1024);
 
 		private Status status = Status.UNKNOWN;
 
@@ -171,7 +175,8 @@ public abstract class Agent {
 				passphrase = passphraseOverride;
 			}
 
-			sendMessage(new Message.RegisterMessage(team, passphrase));
+			sendMessage(new Message.RegisterMessage(team, passphrase,
+					legacyProtocol ? 0 : BinaryCodec.VERSION));
 
 			this.name = name;
 
@@ -187,8 +192,23 @@ public abstract class Agent {
 
 			switch (status) {
 			case UNKNOWN:
-				if (message instanceof Message.AcknowledgeMessage)
+				if (message instanceof Message.AcknowledgeMessage) {
+
+					int codec = ((Message.AcknowledgeMessage) message)
+							.getCodec();
+
+					if (codec > 0) {
+						try {
+							switchInputCodec(codec);
+						} catch (IOException e) {
+							close();
+							break;
+						}
+						switchOutputCodec(codec);
+					}
+
 					status = Status.REGISTERED;
+				}
 				break;
 
 			case REGISTERED:
@@ -245,11 +265,11 @@ public abstract class Agent {
 				if ((message instanceof Message.ReceiveMessage)
 						|| (message instanceof Message.StateMessage)) {
 
-					synchronized (inbox) {
-
-						inbox.add(message);
-						inbox.notifyAll();
-
+					// if the agent does not keep up the input thread waits, which
+					// in turn stops reading from the socket
+					try {
+						inbox.put(message);
+					} catch (InterruptedException e) {
 					}
 
 				}
@@ -297,23 +317,20 @@ public abstract class Agent {
 
 		@Override
 		public void run() {
-			Thread messages = new Thread(new Runnable() {
+			Thread messages = Threads.create(new Runnable() {
 
 				@Override
 				public void run() {
 
 					while (true) {
 
-						synchronized (inbox) {
-							while (inbox.isEmpty()) {
-								try {
-									inbox.wait();
-								} catch (InterruptedException e) {
-								}
-							}
-						}
+						Message msg;
 
-						Message msg = inbox.poll();
+						try {
+							msg = inbox.take();
+						} catch (InterruptedException e) {
+							continue;
+						}
 
 						if (agent != null && isAlive()) {
 							try {
@@ -341,7 +358,7 @@ public abstract class Agent {
 
 					}
 				}
-			});
+			}, null);
 			messages.start();
 
 			try {
@@ -393,8 +410,7 @@ public abstract class Agent {
 				Thread.sleep(100);
 			} catch (InterruptedException e) {}
 			
-			Thread thread = new Thread(client);
-			thread.setName(client.getName());
+			Thread thread = Threads.create(client, client.getName());
 			thread.start();
 
 			clients.add(client);
@@ -483,6 +499,23 @@ public abstract class Agent {
 
 	}
 
+	/**
+	 * Send a message to all the agents of the same team that are within the
+	 * neighborhood of this agent. Each of them receives it in the same way as
+	 * a message sent with {@link #send(int, byte[])}.
+	 * 
+	 * @param message
+	 *            the message as a byte array
+	 */
+	public final void broadcast(byte[] message) {
+
+		if (!isAlive())
+			return;
+
+		client.sendMessage(new Message.BroadcastMessage(message));
+
+	}
+
 	/**
 	 * Sends a move command to the server. Note that depending on the current
 	 * state of the agent, the command may be acknowledged or ignored. You
@@ -506,7 +539,8 @@ public abstract class Agent {
 	 * the {@link #state(int, Neighborhood, Direction, boolean)} callback.
 	 * 
 	 * @param stamp
-	 *            the stamp of the request
+	 *            the stamp of the request, the response is stamped with the
+	 *            game step of the observation instead
 	 */
 	public final void scan(int stamp) {
 
@@ -531,7 +565,7 @@ public abstract class Agent {
 	 * Called as a result of a {@link #scan(int)} instruction
 	 * 
 	 * @param stamp
-	 *            the stamp of the request
+	 *            the game step in which the neighborhood was observed
 	 * @param neighborhood
 	 *            the neighborhood information
 	 * @param direction
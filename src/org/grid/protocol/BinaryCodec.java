@@ -0,0 +1,426 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.grid.protocol.Message.AcknowledgeMessage;
+import org.grid.protocol.Message.BroadcastMessage;
+import org.grid.protocol.Message.Direction;
+import org.grid.protocol.Message.InitializeMessage;
+import org.grid.protocol.Message.MoveMessage;
+import org.grid.protocol.Message.ReceiveMessage;
+import org.grid.protocol.Message.RegisterMessage;
+import org.grid.protocol.Message.ScanMessage;
+import org.grid.protocol.Message.SendMessage;
+import org.grid.protocol.Message.StateMessage;
+import org.grid.protocol.Message.TerminateMessage;
+
+/**
+ * Compact binary encoding of the protocol messages. It is used instead of Java
+ * serialization once both sides agree on it during registration (see
+ * {@link RegisterMessage#getCodec()}).
+ *
+ * Every message is written as a frame: a one byte opcode, a four byte length of
+ * the payload and the payload itself. Frames with an unknown opcode are skipped
+ * so that newer versions of the codec can add messages. Neighborhood grids are
+ * packed to one byte per cell, the ids of the visible agents of the own team
+ * follow the grid in scan order.
+ *
+ * An instance keeps an internal buffer and is therefore not thread-safe, use
+ * one instance per direction of a connection.
+ */
+public class BinaryCodec {
+
+	public static final int VERSION = 1;
+
+	public static final int HEADER_SIZE = 5;
+
+	public static final int MAX_FRAME_SIZE = 1 << 24;
+
+	private static final int REGISTER = 1;
+
+	private static final int ACKNOWLEDGE = 2;
+
+	private static final int INITIALIZE = 3;
+
+	private static final int TERMINATE = 4;
+
+	private static final int SCAN = 5;
+
+	private static final int STATE = 6;
+
+	private static final int MOVE = 7;
+
+	private static final int SEND = 8;
+
+	private static final int RECEIVE = 9;
+
+	private static final int BROADCAST = 10;
+
+	/**
+	 * Packed cell value for cells that hold a value outside of the range of
+	 * the constants in {@link Neighborhood}, i.e. agent ids.
+	 */
+	private static final int CELL_ID = 7;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	private int version;
+
+	private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+	public BinaryCodec(int version) {
+
+		this.version = Math.min(VERSION, version);
+
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Writes a single frame to the stream. The stream is not flushed.
+	 *
+	 * @param out
+	 *            the output stream
+	 * @param message
+	 *            the message
+	 * @throws IOException
+	 */
+	public void write(DataOutputStream out, Message message) throws IOException {
+
+		ByteBuffer frame = encode(message);
+
+		if (frame == null)
+			return;
+
+		out.write(frame.array(), frame.arrayOffset(), frame.limit());
+
+	}
+
+	/**
+	 * Reads a single frame from the stream.
+	 *
+	 * @param in
+	 *            the input stream
+	 * @return the decoded message or <code>null</code> if the frame was of
+	 *         unknown type
+	 * @throws IOException
+	 */
+	public Message read(DataInputStream in) throws IOException {
+
+		int opcode = in.readUnsignedByte();
+
+		int length = in.readInt();
+
+		if (length < 0 || length > MAX_FRAME_SIZE)
+			throw new IOException("Illegal frame length: " + length);
+
+		ensureCapacity(length);
+
+		in.readFully(buffer.array(), 0, length);
+
+		buffer.clear();
+		buffer.limit(length);
+
+		return decode(opcode, buffer);
+
+	}
+
+	/**
+	 * Encodes a message to a complete frame (header and payload). The returned
+	 * buffer is owned by the codec and is only valid until the next call.
+	 *
+	 * @param message
+	 *            the message
+	 * @return the frame, positioned at the beginning, or <code>null</code> if
+	 *         the message type is not supported by the codec
+	 */
+	public ByteBuffer encode(Message message) {
+
+		if (message instanceof StateMessage) {
+
+			StateMessage m = (StateMessage) message;
+
+			Neighborhood n = m.getNeighborhood();
+
+			int ids = 0;
+
+			if (n != null) {
+				for (int v : n.getGrid())
+					if (v > 0 || v < Neighborhood.OTHER)
+						ids++;
+			}
+
+			begin(STATE, 4 + 1 + 1 + 4
+					+ (n == null ? 0 : n.getGrid().length + 4 + ids * 4));
+
+			buffer.putInt(m.getStamp());
+			putDirection(m.getDirection());
+			buffer.put((byte) (m.hasFlag() ? 1 : 0));
+
+			if (n == null) {
+				buffer.putInt(-1);
+			} else {
+				int[] grid = n.getGrid();
+
+				buffer.putInt(n.getSize());
+
+				for (int v : grid)
+					buffer.put((byte) ((v > 0 || v < Neighborhood.OTHER) ? CELL_ID : -v));
+
+				buffer.putInt(ids);
+
+				for (int v : grid)
+					if (v > 0 || v < Neighborhood.OTHER)
+						buffer.putInt(v);
+			}
+
+		} else if (message instanceof MoveMessage) {
+
+			begin(MOVE, 1);
+			putDirection(((MoveMessage) message).getDirection());
+
+		} else if (message instanceof ScanMessage) {
+
+			begin(SCAN, 4);
+			buffer.putInt(((ScanMessage) message).getStamp());
+
+		} else if (message instanceof SendMessage) {
+
+			SendMessage m = (SendMessage) message;
+
+			begin(SEND, 4 + sizeOf(m.getMessage()));
+			buffer.putInt(m.getTo());
+			putBytes(m.getMessage());
+
+		} else if (message instanceof BroadcastMessage) {
+
+			BroadcastMessage m = (BroadcastMessage) message;
+
+			begin(BROADCAST, sizeOf(m.getMessage()));
+			putBytes(m.getMessage());
+
+		} else if (message instanceof ReceiveMessage) {
+
+			ReceiveMessage m = (ReceiveMessage) message;
+
+			begin(RECEIVE, 4 + sizeOf(m.getMessage()));
+			buffer.putInt(m.getFrom());
+			putBytes(m.getMessage());
+
+		} else if (message instanceof InitializeMessage) {
+
+			InitializeMessage m = (InitializeMessage) message;
+
+			begin(INITIALIZE, 12);
+			buffer.putInt(m.getId());
+			buffer.putInt(m.getMaxMessageSize());
+			buffer.putInt(m.getGameSpeed());
+
+		} else if (message instanceof AcknowledgeMessage) {
+
+			begin(ACKNOWLEDGE, 4);
+			buffer.putInt(((AcknowledgeMessage) message).getCodec());
+
+		} else if (message instanceof TerminateMessage) {
+
+			begin(TERMINATE, 0);
+
+		} else if (message instanceof RegisterMessage) {
+
+			RegisterMessage m = (RegisterMessage) message;
+
+			byte[] team = m.getTeam() == null ? null : m.getTeam().getBytes(UTF8);
+			byte[] passphrase = m.getPassphrase() == null ? null : m
+					.getPassphrase().getBytes(UTF8);
+
+			begin(REGISTER, sizeOf(team) + sizeOf(passphrase) + 4);
+			putBytes(team);
+			putBytes(passphrase);
+			buffer.putInt(m.getCodec());
+
+		} else
+			return null;
+
+		buffer.flip();
+
+		return buffer;
+	}
+
+	/**
+	 * Decodes the payload of a frame.
+	 *
+	 * @param opcode
+	 *            the opcode from the frame header
+	 * @param payload
+	 *            the payload, positioned at its beginning and limited to its
+	 *            length
+	 * @return the message or <code>null</code> if the opcode is unknown
+	 * @throws IOException
+	 *             if the payload is malformed
+	 */
+	public Message decode(int opcode, ByteBuffer payload) throws IOException {
+
+		try {
+
+			switch (opcode) {
+			case STATE: {
+
+				int stamp = payload.getInt();
+				Direction direction = getDirection(payload);
+				boolean hasFlag = payload.get() != 0;
+
+				int size = payload.getInt();
+
+				Neighborhood n = null;
+
+				if (size >= 0) {
+
+					n = new Neighborhood(size);
+
+					int[] grid = n.getGrid();
+
+					for (int i = 0; i < grid.length; i++)
+						grid[i] = -payload.get();
+
+					int ids = payload.getInt();
+
+					for (int i = 0; i < grid.length && ids > 0; i++) {
+						if (grid[i] == -CELL_ID) {
+							grid[i] = payload.getInt();
+							ids--;
+						}
+					}
+
+				}
+
+				StateMessage m = new StateMessage(direction, n, hasFlag);
+				m.setStamp(stamp);
+
+				return m;
+			}
+			case MOVE:
+				return new MoveMessage(getDirection(payload));
+			case SCAN:
+				return new ScanMessage(payload.getInt());
+			case SEND: {
+				int to = payload.getInt();
+				return new SendMessage(to, getBytes(payload));
+			}
+			case BROADCAST:
+				return new BroadcastMessage(getBytes(payload));
+			case RECEIVE: {
+				int from = payload.getInt();
+				return new ReceiveMessage(from, getBytes(payload));
+			}
+			case INITIALIZE: {
+				int id = payload.getInt();
+				int maxMessageSize = payload.getInt();
+				int gameSpeed = payload.getInt();
+				return new InitializeMessage(id, maxMessageSize, gameSpeed);
+			}
+			case ACKNOWLEDGE:
+				return new AcknowledgeMessage(payload.getInt());
+			case TERMINATE:
+				return new TerminateMessage();
+			case REGISTER: {
+				byte[] team = getBytes(payload);
+				byte[] passphrase = getBytes(payload);
+				return new RegisterMessage(team == null ? null : new String(
+						team, UTF8), passphrase == null ? null : new String(
+						passphrase, UTF8), payload.getInt());
+			}
+			default:
+				return null;
+			}
+
+		} catch (RuntimeException e) {
+			throw new IOException("Malformed frame (opcode " + opcode + ")", e);
+		}
+
+	}
+
+	private void begin(int opcode, int length) {
+
+		ensureCapacity(HEADER_SIZE + length);
+
+		buffer.clear();
+		buffer.put((byte) opcode);
+		buffer.putInt(length);
+
+	}
+
+	private void ensureCapacity(int size) {
+
+		if (buffer.capacity() >= size)
+			return;
+
+		buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+
+	}
+
+	private static int sizeOf(byte[] data) {
+		return 4 + (data == null ? 0 : data.length);
+	}
+
+	private void putBytes(byte[] data) {
+
+		if (data == null) {
+			buffer.putInt(-1);
+			return;
+		}
+
+		buffer.putInt(data.length);
+		buffer.put(data);
+
+	}
+
+	private static byte[] getBytes(ByteBuffer payload) {
+
+		int length = payload.getInt();
+
+		if (length < 0)
+			return null;
+
+		byte[] data = new byte[length];
+		payload.get(data);
+
+		return data;
+	}
+
+	private void putDirection(Direction direction) {
+		buffer.put((byte) (direction == null ? -1 : direction.ordinal()));
+	}
+
+	private static Direction getDirection(ByteBuffer payload) {
+
+		int d = payload.get();
+
+		return d < 0 || d >= DIRECTIONS.length ? null : DIRECTIONS[d];
+	}
+
+}
@@ -34,11 +34,18 @@ public abstract class Message implements Serializable {
 		private static final long serialVersionUID = 1L;
 
 		public RegisterMessage(String team, String passphrase) {
+			this(team, passphrase, 0);
+		}
+
+		public RegisterMessage(String team, String passphrase, int codec) {
 			this.team = team;
 			this.passphrase = passphrase;
+			this.codec = codec;
 		}
 
 		private String team, passphrase;
+		
+		private int codec;
 
 		public String getTeam() {
 			return team;
@@ -55,6 +62,21 @@ public abstract class Message implements Serializable {
 		public void setPassphrase(String passphrase) {
 			this.passphrase = passphrase;
 		}
+
+		/**
+		 * Returns the highest version of the binary codec that the client
+		 * supports. Zero (also the value sent by older clients) means that
+		 * the client only understands Java serialization.
+		 * 
+		 * @return the codec version
+		 */
+		public int getCodec() {
+			return codec;
+		}
+
+		public void setCodec(int codec) {
+			this.codec = codec;
+		}
 		
 	}
 	
@@ -62,6 +84,32 @@ public abstract class Message implements Serializable {
 
 		private static final long serialVersionUID = 1L;
 		
+		private int codec;
+		
+		public AcknowledgeMessage() {
+			this(0);
+		}
+		
+		public AcknowledgeMessage(int codec) {
+			super();
+			this.codec = codec;
+		}
+
+		/**
+		 * Returns the version of the binary codec that the server has chosen
+		 * for the rest of the session. Zero means that Java serialization
+		 * is kept.
+		 * 
+		 * @return the codec version
+		 */
+		public int getCodec() {
+			return codec;
+		}
+
+		public void setCodec(int codec) {
+			this.codec = codec;
+		}
+		
 	}
 	
 	
@@ -237,6 +285,32 @@ public abstract class Message implements Serializable {
 		
 	}
 	
+	/**
+	 * A message for all the agents of the own team that are within the
+	 * neighborhood of the sender. Every recipient gets it as a
+	 * {@link ReceiveMessage}.
+	 */
+	public static class BroadcastMessage extends Message {
+
+		private static final long serialVersionUID = 1L;
+		
+		private byte[] message;
+
+		public BroadcastMessage(byte[] message) {
+			super();
+			this.message = message;
+		}
+
+		public byte[] getMessage() {
+			return message;
+		}
+
+		public void setMessage(byte[] message) {
+			this.message = message;
+		}
+		
+	}
+	
 	public static class ReceiveMessage extends Message {
 
 		private static final long serialVersionUID = 1L;
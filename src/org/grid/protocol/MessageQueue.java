@@ -0,0 +1,264 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.protocol;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded lock-free queue of messages that hands them from any number of
+ * producers to a consumer thread. The slots of the ring are claimed with
+ * compare-and-set on sequence counters so neither side takes a monitor. A
+ * consumer that finds the queue empty parks in {@link #take()} and is unparked
+ * by the next producer. Only one thread at a time may wait in
+ * {@link #take()}; polling is safe from any thread.
+ */
+public class MessageQueue {
+
+	private static final long BACKOFF = 1000000L;
+
+	private final int mask;
+
+	private final AtomicReferenceArray<Message> buffer;
+
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong head = new AtomicLong(0);
+
+	private final AtomicLong tail = new AtomicLong(0);
+
+	private volatile Thread consumer = null;
+
+	/**
+	 * Creates a new queue.
+	 * 
+	 * @param capacity
+	 *            the minimal capacity, rounded up to a power of two
+	 */
+	public MessageQueue(int capacity) {
+
+		int size = 2;
+
+		while (size < capacity)
+			size <<= 1;
+
+		mask = size - 1;
+
+		buffer = new AtomicReferenceArray<Message>(size);
+
+		sequences = new AtomicLongArray(size);
+
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Adds a message to the queue if there is space.
+	 * 
+	 * @param message
+	 *            the message
+	 * @return false if the queue is full
+	 */
+	public boolean offer(Message message) {
+
+		while (true) {
+
+			long position = tail.get();
+
+			int index = (int) (position & mask);
+
+			long difference = sequences.get(index) - position;
+
+			if (difference == 0) {
+
+				if (tail.compareAndSet(position, position + 1)) {
+
+					buffer.set(index, message);
+
+					sequences.set(index, position + 1);
+
+					Thread waiting = consumer;
+
+					if (waiting != null)
+						LockSupport.unpark(waiting);
+
+					return true;
+				}
+
+			} else if (difference < 0) {
+
+				return false;
+
+			}
+
+			// another producer has claimed the slot in the meantime
+		}
+
+	}
+
+	/**
+	 * Adds a message to the queue, waiting for space if the queue is full.
+	 * 
+	 * @param message
+	 *            the message
+	 * @throws InterruptedException
+	 */
+	public void put(Message message) throws InterruptedException {
+
+		while (!offer(message)) {
+
+			if (Thread.interrupted())
+				throw new InterruptedException();
+
+			LockSupport.parkNanos(this, BACKOFF);
+
+		}
+
+	}
+
+	/**
+	 * Removes the oldest message from the queue.
+	 * 
+	 * @return the message or <code>null</code> if the queue is empty
+	 */
+	public Message poll() {
+
+		while (true) {
+
+			long position = head.get();
+
+			int index = (int) (position & mask);
+
+			long difference = sequences.get(index) - (position + 1);
+
+			if (difference == 0) {
+
+				if (head.compareAndSet(position, position + 1)) {
+
+					Message message = buffer.get(index);
+
+					buffer.set(index, null);
+
+					sequences.set(index, position + mask + 1);
+
+					return message;
+				}
+
+			} else if (difference < 0) {
+
+				return null;
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Removes the oldest message from the queue, waiting for one if the queue
+	 * is empty.
+	 * 
+	 * @return the message
+	 * @throws InterruptedException
+	 */
+	public Message take() throws InterruptedException {
+
+		Message message = poll();
+
+		if (message != null)
+			return message;
+
+		consumer = Thread.currentThread();
+
+		try {
+
+			while (true) {
+
+				// the consumer is published before polling again, so a producer
+				// either sees it or its message is found here
+				message = poll();
+
+				if (message != null)
+					return message;
+
+				if (Thread.interrupted())
+					throw new InterruptedException();
+
+				LockSupport.park(this);
+
+			}
+
+		} finally {
+			consumer = null;
+		}
+
+	}
+
+	/**
+	 * Moves the waiting messages to a collection.
+	 * 
+	 * @param target
+	 *            the collection
+	 * @param max
+	 *            the maximum number of messages to move
+	 * @return the number of messages moved
+	 */
+	public int drainTo(Collection<Message> target, int max) {
+
+		int count = 0;
+
+		while (count < max) {
+
+			Message message = poll();
+
+			if (message == null)
+				break;
+
+			target.add(message);
+
+			count++;
+		}
+
+		return count;
+
+	}
+
+	public int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public void clear() {
+
+		while (poll() != null)
+			;
+
+	}
+
+}
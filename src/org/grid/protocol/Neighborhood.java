@@ -57,6 +57,14 @@ public class Neighborhood implements Serializable, Arena {
 		return size;
 	}
 	
+	/**
+	 * Returns the cells of the neighborhood in row-major order. The array is
+	 * not copied.
+	 */
+	public int[] getGrid() {
+		return grid;
+	}
+	
 	public int getCell(int x, int y) {
 	
 		if (x > size || x < -size || y > size || y < -size)
@@ -17,16 +17,44 @@
  */
 package org.grid.protocol;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class ProtocolSocket {
 
+	/**
+	 * What to do with an outgoing message when the output queue is full, i.e.
+	 * the other side does not read fast enough.
+	 */
+	public static enum OverflowPolicy {
+		/** Wait until there is space in the queue. */
+		BLOCK, 
+		/** Drop the message. */
+		DROP, 
+		/** Drop the message and close the connection. */
+		DISCONNECT
+	}
+	
+	/**
+	 * The capacity of the input and output queues of a connection, set with
+	 * the system property <tt>org.grid.protocol.queue</tt>.
+	 */
+	public static final int QUEUE_CAPACITY = Math.max(16, Integer.getInteger("org.grid.protocol.queue", 1024));
+
 	public static class AppendableObjectOutputStream extends ObjectOutputStream {
 
 		  public AppendableObjectOutputStream(OutputStream out) throws IOException {
@@ -42,11 +70,44 @@ public class ProtocolSocket {
 
 		}
 
+	/**
+	 * A marker that is put in the output queue to switch the encoding of all the
+	 * messages that follow it. It is never sent.
+	 */
+	public static class CodecSwitch extends Message {
+
+		private static final long serialVersionUID = 1L;
+		
+		private int version;
+		
+		public CodecSwitch(int version) {
+			this.version = version;
+		}
+		
+		public int getVersion() {
+			return version;
+		}
+		
+	}
 	
 	private ObjectInputStream in;
 	
 	private ObjectOutputStream out;
 	
+	private DataInputStream binaryIn;
+	
+	private BufferedOutputStream buffered;
+	
+	private DataOutputStream binaryOut;
+	
+	private BinaryCodec decoder = null;
+	
+	private BinaryCodec encoder = null;
+	
+	private static final int BUFFER_SIZE = 16 * 1024;
+	
+	private static final int MAX_BATCH = 256;
+	
 	private Thread inputThread;
 	
 	private Thread outputThread;
@@ -55,23 +116,57 @@ public class ProtocolSocket {
 	
 	private boolean debug = Boolean.getBoolean("fri.pipt.protocol.debug");
 	
-	private ConcurrentLinkedQueue<Message> inQueue = new ConcurrentLinkedQueue<Message>();
+	private MessageQueue inQueue = new MessageQueue(QUEUE_CAPACITY);
 	
-	private ConcurrentLinkedQueue<Message> outQueue = new ConcurrentLinkedQueue<Message>();
+	private MessageQueue outQueue = new MessageQueue(QUEUE_CAPACITY);
+	
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	
+	private AtomicLong droppedMessages = new AtomicLong(0);
+	
+	// set when the output queue overflows, the output thread closes the socket
+	private volatile boolean overflowed = false;
 	
 	private Socket socket;
 	
+	private InputStream input;
+	
+	private volatile long flushCount = 0;
+	
+	private volatile long flushedMessages = 0;
+	
 	public ProtocolSocket(Socket sck) throws IOException {
 
+		this(sck, null);
+		
+		start();
+		
+	}
+	
+	/**
+	 * Creates a protocol socket without starting the communication threads,
+	 * subclasses have to call {@link #start()} once they are initialized.
+	 * 
+	 * @param sck the socket
+	 * @param preamble the bytes that were already read from the socket (can be <code>null</code>)
+	 * @throws IOException
+	 */
+	protected ProtocolSocket(Socket sck, byte[] preamble) throws IOException {
+		
 		this.socket = sck;
 
-		inputThread = new Thread(new Runnable() {
+		this.input = sck.getInputStream();
+		
+		if (preamble != null)
+			this.input = new SequenceInputStream(new ByteArrayInputStream(preamble), input);
+		
+		inputThread = Threads.create(new Runnable() {
 
 			@Override
 			public void run() {
 				
 				try {
-					in = new ObjectInputStream(socket.getInputStream());
+					in = new ObjectInputStream(input);
 				} catch (IOException e1) {
 					return;
 				}
@@ -80,12 +175,24 @@ public class ProtocolSocket {
 
 					try {
 
-						Object obj = in.readObject();
-
-						if (obj == null || !(obj instanceof Message))
-							continue;
+						Message message;
 						
-						Message message = (Message) obj;
+						if (decoder == null) {
+						
+							Object obj = in.readObject();
+	
+							if (obj == null || !(obj instanceof Message))
+								continue;
+							
+							message = (Message) obj;
+							
+						} else {
+							
+							message = decoder.read(binaryIn);
+							
+							if (message == null)
+								continue;
+						}
 						
 						if (debug)
 							System.err.println("*** PROTOCOL INCOMING <<< " + message.getClass().getSimpleName() + " <<<");
@@ -104,80 +211,115 @@ public class ProtocolSocket {
 				}
 			}
 			
-		});
-		inputThread.start();
+		}, null);
 		
-		outputThread = new Thread(new Runnable() {
+		outputThread = Threads.create(new Runnable() {
 
 			@Override
 			public void run() {
 				
 
 				try {
-					out = new ObjectOutputStream(socket.getOutputStream());
+					buffered = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+					out = new ObjectOutputStream(buffered);
+					out.flush();
 				} catch (IOException e1) {
 					return;
 				}
 
+				ArrayList<Message> batch = new ArrayList<Message>(MAX_BATCH);
 				
 				while (running) {
 
+					// closed here and not in sendMessage, which may be called
+					// while the game holds its locks
+					if (overflowed) {
+						close();
+						break;
+					}
+
 					try {
-						synchronized (outQueue) {
-							while (outQueue.isEmpty()) {
-								try {
-									outQueue.wait();
-								} catch (InterruptedException e) {}
+						
+						try {
+							batch.add(outQueue.take());
+						} catch (InterruptedException e) {
+							continue;
+						}
+						
+						// everything that is waiting is written with a single flush
+						outQueue.drainTo(batch, MAX_BATCH - 1);
+						
+						int written = 0;
+						
+						for (Message message : batch) {
+						
+							if (message instanceof CodecSwitch) {
+								
+								out.flush();
+								
+								binaryOut = new DataOutputStream(buffered);
+								
+								encoder = new BinaryCodec(((CodecSwitch) message).getVersion());
+								
+								continue;
 							}
+							
+							if (debug)
+								System.err.println("*** PROTOCOL OUTGOING >>> " + message.getClass().getSimpleName() + " >>>");
+							
+							if (encoder == null) 
+								out.writeObject(message);
+							else {
+								encoder.write(binaryOut, message);
+								released(message);
+							}
+							
+							written++;
 						}
-
-						Message message = outQueue.poll();
 						
-						if (debug)
-							System.err.println("*** PROTOCOL OUTGOING >>> " + message.getClass().getSimpleName() + " >>>");
+						batch.clear();
 						
-						out.writeObject(message);
-
-						out.flush();
+						if (encoder == null)
+							out.flush();
+						else
+							binaryOut.flush();
+						
+						flushCount++;
+						flushedMessages += written;
 						
 					} catch (IOException e) {
 						if (debug)
 							e.printStackTrace();
+						batch.clear();
 						close();
 					} 
 
 				}
 			}
 			
-		});
-		outputThread.start();
+		}, null);
 	}
 	
-	public Message receiveMessage() {
+	protected void start() {
 		
-		synchronized (inQueue) {
+		inputThread.start();
 		
-			if (inQueue.isEmpty())
-				return null;
+		outputThread.start();
 		
-			return inQueue.poll();
-			
-		}
+	}
+	
+	public Message receiveMessage() {
+		
+		return inQueue.poll();
 		
 	}
 	
 	public Message waitMessage() {
 		
-		synchronized (inQueue) {
-			while (true) {
-			
-				if (inQueue.isEmpty())
-					try {
-						inQueue.wait();
-					} catch (InterruptedException e) {}
-				else break;
-			}
-			return inQueue.poll();
+		while (true) {
+			try {
+				return inQueue.take();
+			} catch (InterruptedException e) {}
 		}
 		
 	}
@@ -187,14 +329,52 @@ public class ProtocolSocket {
 		if (msg == null)
 			return;
 			
-		synchronized (outQueue) {
-		
-			outQueue.add(msg);
+		if (outQueue.offer(msg))
+			return;
 		
-			outQueue.notifyAll();
-			
+		switch (overflowPolicy) {
+		case BLOCK:
+			while (running) {
+				if (outQueue.offer(msg))
+					return;
+				LockSupport.parkNanos(this, 1000000L);
+			}
+			break;
+		case DROP:
+			break;
+		case DISCONNECT:
+			if (running && !overflowed) {
+				if (debug)
+					System.err.println("*** PROTOCOL OUTPUT QUEUE FULL, CLOSING ***");
+				overflowed = true;
+				if (outputThread != Thread.currentThread())
+					outputThread.interrupt();
+			}
+			break;
 		}
 		
+		droppedMessages.incrementAndGet();
+		
+	}
+	
+	/**
+	 * Sets the policy for outgoing messages when the output queue is full. The 
+	 * default is to block the sender until there is space.
+	 * 
+	 * @param policy the policy
+	 */
+	public void setOverflowPolicy(OverflowPolicy policy) {
+		this.overflowPolicy = policy == null ? OverflowPolicy.BLOCK : policy;
+	}
+	
+	/**
+	 * Returns the number of messages that were dropped because one of the
+	 * queues was full.
+	 * 
+	 * @return the number of dropped messages
+	 */
+	public long getDroppedMessages() {
+		return droppedMessages.get();
 	}
 	
 	public void close() {
@@ -203,6 +383,10 @@ public class ProtocolSocket {
 		
 		running = false;
 		
+		// wake up the output thread if it is waiting for messages
+		if (outputThread != Thread.currentThread())
+			outputThread.interrupt();
+		
 		onTerminate();
 		
 		try {
@@ -218,13 +402,43 @@ public class ProtocolSocket {
 		}
 	}
 	
+	/**
+	 * Switches decoding of the incoming messages to the binary codec. Must be
+	 * called from {@link #handleMessage(Message)} so that the switch happens
+	 * exactly after the message that negotiated it.
+	 * 
+	 * @param version the version of the codec
+	 * @throws IOException
+	 */
+	protected void switchInputCodec(int version) throws IOException {
+		
+		binaryIn = new DataInputStream(new BufferedInputStream(input));
+		
+		decoder = new BinaryCodec(version);
+		
+	}
+	
+	/**
+	 * Switches encoding of the outgoing messages to the binary codec. All the
+	 * messages that were sent before this call are still encoded using Java
+	 * serialization.
+	 * 
+	 * @param version the version of the codec
+	 */
+	protected void switchOutputCodec(int version) {
+		
+		sendMessage(new CodecSwitch(version));
+		
+	}
+	
 	protected void handleMessage(Message message) {
 		
-		synchronized (inQueue) {
+		// nobody may be reading the incoming messages, keep only the newest ones
+		while (!inQueue.offer(message)) {
 			
-			inQueue.add(message);
-			inQueue.notifyAll();
+			inQueue.poll();
 			
+			droppedMessages.incrementAndGet();
 		}
 		
 	}
@@ -233,6 +447,40 @@ public class ProtocolSocket {
 		
 	}
 	
+	/**
+	 * Called by the output thread when a message has been encoded with the
+	 * binary codec. The socket does not refer to the message any more, so it
+	 * may be reused. Messages written with Java serialization are never
+	 * released as the object stream keeps references to them.
+	 * 
+	 * @param message
+	 *            the message
+	 */
+	protected void released(Message message) {
+		
+	}
+	
+	/**
+	 * Returns the number of times the output was flushed to the socket. The
+	 * output thread writes all the messages that are waiting in the queue
+	 * before it flushes, so together with {@link #getFlushedMessages()} this
+	 * gives the average batch size.
+	 * 
+	 * @return the number of flushes
+	 */
+	public long getFlushCount() {
+		return flushCount;
+	}
+	
+	/**
+	 * Returns the number of messages written to the socket.
+	 * 
+	 * @return the number of messages
+	 */
+	public long getFlushedMessages() {
+		return flushedMessages;
+	}
+	
 	public InetAddress getRemoteAddress() {
 		return socket.getInetAddress();
 	}
@@ -0,0 +1,102 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.protocol;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates the threads that run the blocking protocol code. By default these
+ * are ordinary platform threads. If the system property
+ * <tt>org.grid.threads</tt> is set to <tt>virtual</tt> and the Java runtime
+ * supports virtual threads (Java 21 or newer), virtual threads are used
+ * instead, which makes it possible to run thousands of connections in a single
+ * JVM without changing the blocking code.
+ */
+public class Threads {
+
+	private static Object builder = null;
+
+	private static Method unstarted = null;
+
+	static {
+
+		if ("virtual".equalsIgnoreCase(System.getProperty("org.grid.threads"))) {
+
+			try {
+
+				// resolved reflectively so that the code still runs on older runtimes
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+				builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+				unstarted = builderClass.getMethod("unstarted", Runnable.class);
+
+			} catch (Exception e) {
+
+				builder = null;
+				unstarted = null;
+
+				System.err.println("Virtual threads are not supported by this runtime, using platform threads.");
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Checks if new threads are virtual threads.
+	 * 
+	 * @return true if virtual threads are used
+	 */
+	public static boolean isVirtual() {
+		return unstarted != null;
+	}
+
+	/**
+	 * Creates a new thread that is not started yet.
+	 * 
+	 * @param runnable
+	 *            the code to run
+	 * @param name
+	 *            the name of the thread (can be <code>null</code>)
+	 * @return a new thread
+	 */
+	public static Thread create(Runnable runnable, String name) {
+
+		Thread thread = null;
+
+		if (unstarted != null) {
+			try {
+				thread = (Thread) unstarted.invoke(builder, runnable);
+			} catch (Exception e) {
+				thread = null;
+			}
+		}
+
+		if (thread == null)
+			thread = new Thread(runnable);
+
+		if (name != null)
+			thread.setName(name);
+
+		return thread;
+
+	}
+
+}
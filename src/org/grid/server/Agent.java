@@ -17,16 +17,17 @@
  */
 package org.grid.server;
 
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.grid.arena.Arena;
+import org.grid.protocol.Message;
+import org.grid.protocol.MessageQueue;
 import org.grid.protocol.Message.Direction;
 import org.grid.server.Field.Body;
 import org.grid.server.Field.BodyPosition;
 import org.grid.server.Field.Cell;
-import org.grid.server.Game.MessageContainter;
 import org.grid.server.Team.Flag;
 import org.grid.server.Team.Headquarters;
 import org.grid.server.Team.TeamBody;
@@ -44,10 +45,29 @@ public class Agent extends TeamBody {
 
 	private boolean alive = true;
 
-	private Set<Flag> flags = new HashSet<Flag>();
+	private Set<Flag> flags = new LinkedHashSet<Flag>();
+
+	// one plus the weight of the carried flags
+	private float weight = 1;
+
+	// a flag was picked up by the last commit
+	private boolean pickedUp = false;
+
+	/**
+	 * Maximum number of outgoing messages an agent can request within one
+	 * step, the rest is discarded.
+	 */
+	public static final int OUTBOX_CAPACITY = 64;
+
+	/**
+	 * Command slots written by the input thread of the client and drained by
+	 * the simulation at the beginning of a step (see {@link #request(Direction)}
+	 * and {@link #post(Message)}).
+	 */
+	private AtomicReference<Direction> requested = new AtomicReference<Direction>();
+
+	private MessageQueue outbox = new MessageQueue(OUTBOX_CAPACITY);
 
-	private LinkedList<MessageContainter> messageQueue = new LinkedList<MessageContainter>();
-	
 	public Agent(Team team, int id) {
 
 		super(Arena.TILE_AGENT, team);
@@ -58,26 +78,75 @@ public class Agent extends TeamBody {
 		return id;
 	}
 
+	/**
+	 * Outcome of the planning phase of a move.
+	 * 
+	 * NONE - the agent does not move, STAY - the agent only changes its offset
+	 * within the current cell, CROSS - the agent enters a new cell and may
+	 * collide with other bodies.
+	 */
+	public static enum Intent {
+		NONE, STAY, CROSS
+	}
+
+	private Intent intent = Intent.NONE;
+
+	private BodyPosition intentPosition;
+
+	private BodyPosition planned = new BodyPosition(0, 0);
+
+	// links of the agent in the spatial index of its team (see AgentGrid)
+
+	int gridBucket = -1;
+
+	Agent gridNext, gridPrevious;
+
+	private Direction intentDirection;
+
 	public boolean move(Field arena) {
 
 		synchronized (this) {
 
+			plan(arena);
+
+			return commit(arena);
+
+		}
+
+	}
+
+	/**
+	 * Computes the next position of the agent without changing the field or
+	 * the agent. The result is applied with {@link #commit(Field)}. Planning
+	 * only reads the state of this agent, so agents can be planned
+	 * concurrently.
+	 * 
+	 * @param arena
+	 *            the field
+	 * @return the intent of the agent
+	 */
+	public Intent plan(Field arena) {
+
+		synchronized (this) {
+
+			intent = Intent.NONE;
+			intentPosition = null;
+
 			if (!isAlive())
-				return false;
+				return intent;
 
-			BodyPosition position = arena.getPosition(this);
+			BodyPosition position = planned;
 
-			if (position == null)
-				return false;
+			if (!arena.getPosition(this, position))
+				return intent;
 
-			float weight = 1;
-			
-			for (Flag flag : flags) {
-				weight += flag.getWeight();
-			}
-			
 			float speed = 0.1f / weight;
-			
+
+			int x = position.getX();
+			int y = position.getY();
+
+			Direction direction = this.direction;
+
 			switch (direction) {
 			case DOWN:
 				position.setOffsetY(position.getOffsetY() + speed);
@@ -108,9 +177,55 @@ public class Agent extends TeamBody {
 				}
 				break;
 			default:
-				return false;
+				return intent;
 			}
 
+			intentPosition = position;
+			intentDirection = direction;
+			intent = (position.getX() == x && position.getY() == y) ? Intent.STAY : Intent.CROSS;
+
+			return intent;
+		}
+
+	}
+
+	public Intent getIntent() {
+		return intent;
+	}
+
+	/**
+	 * Returns the position the agent has planned to move to or
+	 * <code>null</code> if it does not move.
+	 */
+	public BodyPosition getIntentPosition() {
+		return intentPosition;
+	}
+
+	/**
+	 * Applies the move computed by the last call to {@link #plan(Field)} and
+	 * resolves collisions. An agent that was killed after it was planned does
+	 * not move.
+	 * 
+	 * @param arena
+	 *            the field
+	 * @return <code>true</code> if the agent has moved (or died trying)
+	 */
+	public boolean commit(Field arena) {
+
+		synchronized (this) {
+
+			Intent intent = this.intent;
+			BodyPosition position = intentPosition;
+
+			this.intent = Intent.NONE;
+			intentPosition = null;
+			pickedUp = false;
+
+			if (intent == Intent.NONE || !isAlive())
+				return false;
+
+			direction = intentDirection;
+
 			// System.out.printf("%.1f %.1f %s\n", position.getOffsetX(),
 			// position.getOffsetY(), direction);
 
@@ -126,7 +241,10 @@ public class Agent extends TeamBody {
 
 							arena.removeBody(b);
 
-							flags.add((Flag) b);
+							if (flags.add((Flag) b))
+								weight += ((Flag) b).getWeight();
+
+							pickedUp = true;
 
 							return true;
 						}
@@ -137,6 +255,7 @@ public class Agent extends TeamBody {
 								((Headquarters) b).putFlag(flag);
 							
 							flags.clear();
+							weight = 1;
 						}
 					}
 					if (b instanceof Agent) {
@@ -168,6 +287,59 @@ public class Agent extends TeamBody {
 
 	}
 
+	/**
+	 * Requests a new direction. Only the latest request before a step is
+	 * applied, the call never blocks on the simulation.
+	 * 
+	 * @param direction
+	 *            the requested direction
+	 */
+	public void request(Direction direction) {
+
+		requested.set(direction);
+
+	}
+
+	/**
+	 * Queues an outgoing message (a send or a broadcast) that is handled by
+	 * the simulation at the beginning of the next step.
+	 * 
+	 * @param message
+	 *            the message
+	 * @return <code>false</code> if the outbox is full and the message was
+	 *         discarded
+	 */
+	public boolean post(Message message) {
+
+		return outbox.offer(message);
+
+	}
+
+	/**
+	 * Applies the latest requested direction, if any. Called by the
+	 * simulation thread.
+	 */
+	void applyRequest() {
+
+		Direction direction = requested.getAndSet(null);
+
+		if (direction != null)
+			setDirection(direction);
+
+	}
+
+	/**
+	 * Takes the next message from the outbox. Called by the simulation
+	 * thread.
+	 * 
+	 * @return the message or <code>null</code> if the outbox is empty
+	 */
+	Message pollOutgoing() {
+
+		return outbox.poll();
+
+	}
+
 	public void die() {
 		alive = false;
 	}
@@ -182,6 +354,14 @@ public class Agent extends TeamBody {
 		return direction;
 	}
 
+	/**
+	 * @return <code>true</code> if the agent has picked up a flag in the last
+	 *         step
+	 */
+	boolean hasPickedUp() {
+		return pickedUp;
+	}
+
 	public boolean hasFlag() {
 		return !flags.isEmpty();
 	}
@@ -194,28 +374,5 @@ public class Agent extends TeamBody {
 		return flags.isEmpty() ? Arena.TILE_AGENT : Arena.TILE_AGENT_FLAG;
 	}
 
-	public void pushMessage(int to, byte[] message, int delay) {
-		
-		synchronized (messageQueue) {
-			messageQueue.add(new MessageContainter(to, message, delay));	
-		}
-		
-	}
-	
-	public MessageContainter pullMessage() {
-		
-		synchronized (messageQueue) {
-		
-			MessageContainter m = messageQueue.peek();
-			
-			if (m == null) return null;
-			
-			if (m.decreaseDelay() > 0) return null;
-			
-			return messageQueue.poll();
-			
-		}
-		
-	}
 	
 }
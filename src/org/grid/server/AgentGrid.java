@@ -0,0 +1,144 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.util.List;
+
+/**
+ * A uniform grid over the field that holds the agents of a team. The field
+ * is divided into square buckets, every agent is linked into the bucket of
+ * its cell. With buckets at least as large as the query range a range query
+ * only visits the 3x3 buckets around the center.
+ * 
+ * The grid is updated by the game step and read by the code that runs under
+ * the game lock, it is not thread-safe on its own.
+ */
+class AgentGrid {
+
+	private int bucketSize;
+
+	private int columns, rows;
+
+	private Agent[] buckets;
+
+	public AgentGrid(int width, int height, int bucketSize) {
+
+		this.bucketSize = Math.max(1, bucketSize);
+		this.columns = (width + this.bucketSize - 1) / this.bucketSize;
+		this.rows = (height + this.bucketSize - 1) / this.bucketSize;
+		this.buckets = new Agent[Math.max(1, columns * rows)];
+
+	}
+
+	/**
+	 * Moves an agent to the bucket of the given cell. Does nothing if the
+	 * agent is already there.
+	 */
+	public void update(Agent agent, int x, int y) {
+
+		if (x < 0 || y < 0) {
+			remove(agent);
+			return;
+		}
+
+		int bucket = Math.min(rows - 1, y / bucketSize) * columns
+				+ Math.min(columns - 1, x / bucketSize);
+
+		if (agent.gridBucket == bucket)
+			return;
+
+		remove(agent);
+
+		agent.gridBucket = bucket;
+		agent.gridPrevious = null;
+		agent.gridNext = buckets[bucket];
+
+		if (buckets[bucket] != null)
+			buckets[bucket].gridPrevious = agent;
+
+		buckets[bucket] = agent;
+
+	}
+
+	public void remove(Agent agent) {
+
+		int bucket = agent.gridBucket;
+
+		if (bucket < 0)
+			return;
+
+		if (agent.gridPrevious != null)
+			agent.gridPrevious.gridNext = agent.gridNext;
+		else
+			buckets[bucket] = agent.gridNext;
+
+		if (agent.gridNext != null)
+			agent.gridNext.gridPrevious = agent.gridPrevious;
+
+		agent.gridBucket = -1;
+		agent.gridNext = null;
+		agent.gridPrevious = null;
+
+	}
+
+	/**
+	 * Finds the agents whose L_inf distance to a cell is at most the given
+	 * range.
+	 * 
+	 * @param field
+	 *            the field with the positions of the agents
+	 * @param x
+	 *            the x coordinate of the center
+	 * @param y
+	 *            the y coordinate of the center
+	 * @param range
+	 *            the range
+	 * @param result
+	 *            the list that the agents are added to
+	 * @return the number of agents found
+	 */
+	public int query(Field field, int x, int y, int range, List<Agent> result) {
+
+		int found = 0;
+
+		int x0 = Math.max(0, (x - range) / bucketSize), x1 = Math.min(columns - 1, (x + range) / bucketSize);
+		int y0 = Math.max(0, (y - range) / bucketSize), y1 = Math.min(rows - 1, (y + range) / bucketSize);
+
+		for (int j = y0; j <= y1; j++) {
+			for (int i = x0; i <= x1; i++) {
+
+				for (Agent a = buckets[j * columns + i]; a != null; a = a.gridNext) {
+
+					int ax = field.getX(a), ay = field.getY(a);
+
+					if (ax < 0 || Math.abs(ax - x) > range || Math.abs(ay - y) > range)
+						continue;
+
+					result.add(a);
+					found++;
+
+				}
+
+			}
+		}
+
+		return found;
+
+	}
+
+}
@@ -311,6 +311,7 @@ public class ClientsPanel extends JPanel {
 				return;
 			}
 			traffic.push((float)messages / game.getSpeed());
+			clientInfo.setText(String.format("%s (%.1f messages per flush)", client, client.getMessagesPerFlush()));
 		}
 
 		@Override
@@ -0,0 +1,254 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import org.grid.server.Dispatcher.Client;
+
+/**
+ * Messages in transit between the agents of a team, ordered by the step in
+ * which they are delivered.
+ * 
+ * The messages are kept in a timing wheel: a ring of slots, one per step, each
+ * holding a list of the messages due in that step. The wheel always spans the
+ * longest pending delay, so all messages in the current slot are due and
+ * delivering them costs only their number. Unlike a queue per sender a long
+ * message does not hold back the shorter ones sent after it.
+ * 
+ * The wheel is not thread-safe, it is used by the simulation thread only.
+ */
+public class DeliveryWheel {
+
+	private static class Entry {
+
+		private Agent sender;
+
+		private int to;
+
+		private byte[] message;
+
+		private Entry next;
+
+	}
+
+	private Entry[] slots;
+
+	private Entry[] tails;
+
+	private Entry free = null;
+
+	/**
+	 * Number of advances so far, the slot of the next step is
+	 * <code>current & (slots.length - 1)</code>.
+	 */
+	private long current = 0;
+
+	private int queued = 0;
+
+	private long queuedBytes = 0;
+
+	private int delivered = 0;
+
+	private long deliveredBytes = 0;
+
+	public DeliveryWheel() {
+
+		this(32);
+
+	}
+
+	public DeliveryWheel(int span) {
+
+		int size = Integer.highestOneBit(Math.max(2, span - 1)) << 1;
+
+		slots = new Entry[size];
+		tails = new Entry[size];
+
+	}
+
+	/**
+	 * Schedules a message for delivery.
+	 * 
+	 * @param sender
+	 *            the sending agent
+	 * @param to
+	 *            the id of the receiving agent
+	 * @param message
+	 *            the message
+	 * @param delay
+	 *            number of steps in transit, 0 means that the message is
+	 *            delivered by the next call to {@link #advance(Team)}
+	 */
+	public void schedule(Agent sender, int to, byte[] message, int delay) {
+
+		delay = Math.max(0, delay);
+
+		if (delay >= slots.length)
+			grow(delay + 1);
+
+		Entry e = free;
+
+		if (e != null)
+			free = e.next;
+		else
+			e = new Entry();
+
+		e.sender = sender;
+		e.to = to;
+		e.message = message;
+		e.next = null;
+
+		int slot = (int) ((current + delay) & (slots.length - 1));
+
+		if (tails[slot] == null)
+			slots[slot] = e;
+		else
+			tails[slot].next = e;
+
+		tails[slot] = e;
+
+		queued++;
+		queuedBytes += message.length;
+
+	}
+
+	/**
+	 * Delivers the messages due in the current step and moves to the next
+	 * one. Messages of agents that were removed from the team in the meantime
+	 * and messages to agents that no longer exist are discarded. An agent that
+	 * dies in a step is only removed at the end of the step, so its messages
+	 * are still delivered in that step.
+	 * 
+	 * @param team
+	 *            the team of the agents
+	 * @return the number of delivered messages
+	 */
+	public int advance(Team team) {
+
+		int slot = (int) (current & (slots.length - 1));
+
+		Entry e = slots[slot];
+
+		slots[slot] = null;
+		tails[slot] = null;
+
+		current++;
+
+		delivered = 0;
+		deliveredBytes = 0;
+
+		while (e != null) {
+
+			Entry next = e.next;
+
+			queued--;
+			queuedBytes -= e.message.length;
+
+			Client cltfrom = team.findById(e.sender.getId());
+
+			if (cltfrom != null && cltfrom.getAgent() == e.sender) {
+
+				Client cltto = team.findById(e.to);
+
+				if (cltto != null) {
+					cltto.send(e.sender.getId(), e.message);
+					delivered++;
+					deliveredBytes += e.message.length;
+				}
+
+			}
+
+			e.sender = null;
+			e.message = null;
+			e.next = free;
+			free = e;
+
+			e = next;
+		}
+
+		return delivered;
+
+	}
+
+	/**
+	 * @return the number of messages delivered by the last call to
+	 *         {@link #advance(Team)}
+	 */
+	public int getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * @return the number of bytes delivered by the last call to
+	 *         {@link #advance(Team)}
+	 */
+	public long getDeliveredBytes() {
+		return deliveredBytes;
+	}
+
+	/**
+	 * @return the number of messages in transit
+	 */
+	public int getQueued() {
+		return queued;
+	}
+
+	/**
+	 * @return the total size of the messages in transit in bytes
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	/**
+	 * Enlarges the wheel so that it spans at least the given number of steps.
+	 * The pending messages keep their delivery step.
+	 */
+	private void grow(int span) {
+
+		int size = slots.length;
+
+		while (size < span)
+			size <<= 1;
+
+		Entry[] oldSlots = slots;
+
+		slots = new Entry[size];
+		tails = new Entry[size];
+
+		// every old slot holds the messages of a single step, the steps of the
+		// old slots are current ... current + oldSlots.length - 1
+		for (int i = 0; i < oldSlots.length; i++) {
+
+			long step = current + i;
+
+			int from = (int) (step & (oldSlots.length - 1));
+			int to = (int) (step & (size - 1));
+
+			slots[to] = oldSlots[from];
+
+			Entry e = oldSlots[from];
+
+			while (e != null && e.next != null)
+				e = e.next;
+
+			tails[to] = e;
+		}
+
+	}
+
+}
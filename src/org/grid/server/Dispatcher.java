@@ -18,15 +18,23 @@
 package org.grid.server;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.HashSet;
 import java.util.Vector;
 
+import org.grid.protocol.BinaryCodec;
 import org.grid.protocol.Message;
 import org.grid.protocol.Neighborhood;
+import org.grid.protocol.MessageQueue;
 import org.grid.protocol.ProtocolSocket;
+import org.grid.protocol.ProtocolSocket.OverflowPolicy;
 import org.grid.protocol.Message.AcknowledgeMessage;
+import org.grid.protocol.Message.BroadcastMessage;
 import org.grid.protocol.Message.MoveMessage;
 import org.grid.protocol.Message.RegisterMessage;
 import org.grid.protocol.Message.ScanMessage;
@@ -37,7 +45,79 @@ public class Dispatcher implements Runnable {
 
 	public static enum Status {UNKNOWN, REGISTERED, USED}
 	
-	public class Client extends ProtocolSocket {
+	/**
+	 * The connection that carries the messages of a client. The client does not
+	 * care if the messages are handled by dedicated threads or by an event loop.
+	 */
+	static interface Transport {
+		
+		public void sendMessage(Message message);
+		
+		public void close();
+		
+		public void switchInputCodec(int version) throws IOException;
+		
+		public void switchOutputCodec(int version);
+		
+		public InetAddress getRemoteAddress();
+		
+		public int getRemotePort();
+		
+		public long getFlushCount();
+		
+		public long getFlushedMessages();
+		
+	}
+	
+	/**
+	 * Transport that uses a blocking socket with an input and an output thread.
+	 */
+	static class SocketTransport extends ProtocolSocket implements Transport {
+
+		private Client client;
+		
+		public SocketTransport(Client client, Socket socket, byte[] preamble) throws IOException {
+			super(socket, preamble);
+			
+			this.client = client;
+			
+			client.attach(this);
+			
+			setOverflowPolicy(client.getDispatcher().getOverflowPolicy());
+			
+			start();
+		}
+		
+		@Override
+		protected void handleMessage(Message message) {
+			client.handleMessage(message);
+		}
+		
+		@Override
+		protected void onTerminate() {
+			client.onTerminate();
+		}
+		
+		@Override
+		protected void released(Message message) {
+			client.released(message);
+		}
+		
+		@Override
+		public void switchInputCodec(int version) throws IOException {
+			super.switchInputCodec(version);
+		}
+		
+		@Override
+		public void switchOutputCodec(int version) {
+			super.switchOutputCodec(version);
+		}
+		
+	}
+	
+	public class Client {
+		
+		private Transport transport;
 
 		private Status status = Status.UNKNOWN;
 		
@@ -47,10 +127,57 @@ public class Dispatcher implements Runnable {
 		
 		private int totalMessages = 0, scanMessages = 0, msgMessages = 0;
 		
-		public Client(Socket socket)
-				throws IOException {
-			super(socket);
-			listeners = new Vector<ClientListener>();
+		private boolean terminated = false;
+		
+		// the last acknowledged step barrier generation, guarded by the client
+		private int acknowledged = 0;
+		
+		// the last step barrier generation that waits for this client
+		private volatile int counted = 0;
+		
+		// state messages that have been written by the transport and can be
+		// reused for the next scan
+		private MessageQueue states = new MessageQueue(4);
+		
+		protected Client() {
+		}
+		
+		Dispatcher getDispatcher() {
+			return Dispatcher.this;
+		}
+		
+		void attach(Transport transport) {
+			this.transport = transport;
+		}
+		
+		public void sendMessage(Message message) {
+			transport.sendMessage(message);
+		}
+		
+		public void close() {
+			transport.close();
+		}
+		
+		public InetAddress getRemoteAddress() {
+			return transport == null ? null : transport.getRemoteAddress();
+		}
+		
+		public int getRemotePort() {
+			return transport == null ? -1 : transport.getRemotePort();
+		}
+		
+		/**
+		 * Returns the average number of messages that were written to the
+		 * client with a single flush.
+		 * 
+		 * @return messages per flush
+		 */
+		public float getMessagesPerFlush() {
+			
+			if (transport == null || transport.getFlushCount() == 0)
+				return 0;
+			
+			return (float) transport.getFlushedMessages() / transport.getFlushCount();
 		}
 		
 		protected void handleMessage(Message message) {
@@ -92,11 +219,28 @@ public class Dispatcher implements Runnable {
 					
 					Main.log("New client joined team " + team + ": " + this);
 					
-					team.addClient(this);
-					
 					status = Status.REGISTERED;
 					
-					sendMessage(new Message.AcknowledgeMessage());
+					int codec = binaryCodec ? Math.min(BinaryCodec.VERSION, ((RegisterMessage) message).getCodec()) : 0;
+					
+					// the acknowledgment has to be sent before the client is added 
+					// to the team as the agent may be assigned immediately
+					sendMessage(new Message.AcknowledgeMessage(codec));
+					
+					if (codec > 0) {
+						
+						try {
+							transport.switchInputCodec(codec);
+						} catch (IOException e) {
+							close();
+							return;
+						}
+						
+						transport.switchOutputCodec(codec);
+						
+					}
+					
+					team.addClient(this);
 				
 				}
 				
@@ -117,13 +261,40 @@ public class Dispatcher implements Runnable {
 				if (agent == null)
 					return;
 				
+				// in batch mode a scan or a move acknowledges the current step,
+				// the move is queued first so that it is part of the next step
+				if (message instanceof MoveMessage)
+					game.move(team, agent.getId(), ((MoveMessage) message).getDirection());
+
+				if (game.getBarrier() != null && (message instanceof ScanMessage || message instanceof MoveMessage)) {
+					// a client that leaves at the same time must not acknowledge twice
+					synchronized (this) {
+						acknowledged = game.getBarrier().arrive(acknowledged);
+					}
+				}
+				
 				if (message instanceof ScanMessage) {
 					
 					scanMessages++;
 					
-					Neighborhood n = game.scanNeighborhood(neighborhoodSize, getAgent());
+					Message.StateMessage state = (Message.StateMessage) states.poll();
+					
+					if (state == null)
+						state = new Message.StateMessage(null, new Neighborhood(neighborhoodSize), false);
+					
+					int step = game.scanNeighborhood(agent, state.getNeighborhood());
 					
-					sendMessage(new Message.StateMessage(getAgent().getDirection(), n, agent.hasFlag()));
+					if (step < 0) {
+						sendMessage(new Message.StateMessage(agent.getDirection(), null, agent.hasFlag()));
+						return;
+					}
+					
+					// the step of the snapshot the neighborhood was read from
+					state.setStamp(step);
+					state.setDirection(agent.getDirection());
+					state.setFlag(agent.hasFlag());
+					
+					sendMessage(state);
 					
 					return;
 				}
@@ -144,9 +315,23 @@ public class Dispatcher implements Runnable {
 					return;
 				}				
 
+				if (message instanceof BroadcastMessage) {
+					
+					msgMessages++;
+					
+					byte[] data = ((BroadcastMessage) message).getMessage();
+					
+					if (data == null || data.length > maxMessageSize) {
+						Main.log("Broadcast from %d rejected: too long", agent.getId());
+						return;
+					}
+					
+					game.broadcast(team, agent.getId(), data);
+					
+					return;
+				}
+
 				if (message instanceof MoveMessage) {
-										
-					game.move(team, agent.getId(), ((MoveMessage) message).getDirection());
 					
 					return;
 				}	
@@ -165,6 +350,10 @@ public class Dispatcher implements Runnable {
 			return team;
 		}
 		
+		public Status getStatus() {
+			return status;
+		}
+		
 		public void setAgent(Agent agent) {
 		
 			if (this.agent != null) {
@@ -183,12 +372,48 @@ public class Dispatcher implements Runnable {
 			
 		}
 
-		@Override
+		void released(Message message) {
+			
+			if (message instanceof Message.StateMessage && ((Message.StateMessage) message).getNeighborhood() != null)
+				states.offer(message);
+			
+		}
+
+		/**
+		 * @return <code>true</code> if the connection of the client has been
+		 *         closed
+		 */
+		public boolean isTerminated() {
+			synchronized (this) {
+				return terminated;
+			}
+		}
+		
+		/**
+		 * Marks the client as one of the parties of a step barrier generation.
+		 */
+		void count(int generation) {
+			counted = generation;
+		}
+		
 		protected void onTerminate() {
 			
+			synchronized (this) {
+				if (terminated)
+					return;
+				terminated = true;
+			}
+			
 			if (team != null)
 				team.removeClient(this);
 			
+			// the client will not acknowledge the step it was counted for
+			if (game.getBarrier() != null) {
+				synchronized (this) {
+					acknowledged = game.getBarrier().leave(acknowledged, counted);
+				}
+			}
+			
 			synchronized (clients) {
 				clients.remove(this);
 			}
@@ -278,22 +503,63 @@ public class Dispatcher implements Runnable {
 	
 	private ServerSocket socket;
 	
+	private ServerSocketChannel channel = null;
+	
+	private EventLoop[] loops = null;
+	
 	private Game game;
 	
 	private int maxMessageSize = 1024;
 	
 	private int neighborhoodSize = 5;	
 	
+	private boolean binaryCodec = true;
+	
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+	
+	boolean isBinaryCodecEnabled() {
+		return binaryCodec;
+	}
+	
+	OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+	
 	public Dispatcher(int port, Game game) throws IOException {
 		
-		socket = new ServerSocket(port);
-		
 		this.game = game;
 		
+		int eventLoops = game.getProperty("server.eventloops", 0);
+		
+		if (eventLoops > 0) {
+			
+			channel = ServerSocketChannel.open();
+			
+			channel.socket().bind(new InetSocketAddress(port));
+			
+			loops = new EventLoop[eventLoops];
+			
+			for (int i = 0; i < loops.length; i++) 
+				loops[i] = new EventLoop(this);
+
+			Main.log("Using %d event loops for client connections", eventLoops);
+			
+		} else {
+		
+			socket = new ServerSocket(port);
+		
+		}
+		
 		this.maxMessageSize = game.getProperty("message.size", 256);
 
 		this.neighborhoodSize = game.getNeighborhoodSize();
 		
+		this.binaryCodec = game.getProperty("message.binary", true);
+		
+		// the game must never wait for a client that does not read its messages
+		if ("drop".equalsIgnoreCase(game.getProperty("server.overflow", "disconnect")))
+			this.overflowPolicy = OverflowPolicy.DROP;
+		
 	}
 
 	@Override
@@ -325,13 +591,47 @@ public class Dispatcher implements Runnable {
 		traffic.setDaemon(true);
 		traffic.start();
 		
+		if (loops != null) {
+			
+			for (int i = 0; i < loops.length; i++) {
+				Thread thread = new Thread(loops[i], "Event loop " + i);
+				thread.setDaemon(true);
+				thread.start();
+			}
+			
+			int next = 0;
+			
+			while (true) {
+				try {
+					SocketChannel sck = channel.accept();
+					sck.socket().setTcpNoDelay(true);
+					Client client = new Client();
+					synchronized (clients) {
+						clients.add(client);
+					}
+					// skip the loops that have stopped, if all have the
+					// connection is closed
+					for (int i = 1; i < loops.length
+							&& loops[next].isStopped(); i++)
+						next = (next + 1) % loops.length;
+					loops[next].register(client, sck);
+					next = (next + 1) % loops.length;
+					
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			
+		}
 		
 		while (true) {
 			try {
 				Socket sck = socket.accept();
 				sck.setTcpNoDelay(true);
+				Client client = new Client();
+				new SocketTransport(client, sck, null);
 				synchronized (clients) {
-					clients.add(new Client(sck));
+					clients.add(client);
 				}
 				
 				
@@ -0,0 +1,448 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.grid.protocol.ProtocolSocket.OverflowPolicy;
+import org.grid.server.Field.BodyPosition;
+
+/**
+ * Delivers game events to listeners on their own threads. The bus is
+ * registered with the game as an ordinary listener and collects the events
+ * of a step in a batch. At the end of the step the batch is copied to a ring
+ * of preallocated batches of every subscribed listener, which is drained by
+ * the thread of the listener. A slow listener therefore never stalls the
+ * simulation unless its overflow policy is {@link OverflowPolicy#BLOCK}.
+ * 
+ * The events are delivered in the same order as by the game, one step at a
+ * time. The position objects are reused in the same way as by the game and
+ * are only valid during the call.
+ */
+public class EventBus implements GameListener {
+
+	private static final int STEP = 0;
+
+	private static final int POSITION = 1;
+
+	private static final int MESSAGE = 2;
+
+	private static final int SPAWN = 3;
+
+	private static final int DEATH = 4;
+
+	/**
+	 * The events of one step stored in columns. A batch is reused for many
+	 * steps, the columns only grow.
+	 */
+	private static class Batch {
+
+		private int size = 0;
+
+		private byte[] types = new byte[64];
+
+		private Team[] teams = new Team[64];
+
+		// agent id or sender
+		private int[] ids = new int[64];
+
+		// x or receiver
+		private int[] xs = new int[64];
+
+		// y or message length
+		private int[] ys = new int[64];
+
+		private float[] offsetsX = new float[64];
+
+		private float[] offsetsY = new float[64];
+
+		private void add(int type, Team team, int id, int x, int y, float offsetX, float offsetY) {
+
+			if (size == types.length)
+				grow(size * 2);
+
+			types[size] = (byte) type;
+			teams[size] = team;
+			ids[size] = id;
+			xs[size] = x;
+			ys[size] = y;
+			offsetsX[size] = offsetX;
+			offsetsY[size] = offsetY;
+
+			size++;
+		}
+
+		private void copy(Batch batch) {
+
+			if (types.length < batch.size)
+				grow(batch.types.length);
+
+			System.arraycopy(batch.types, 0, types, 0, batch.size);
+			System.arraycopy(batch.teams, 0, teams, 0, batch.size);
+			System.arraycopy(batch.ids, 0, ids, 0, batch.size);
+			System.arraycopy(batch.xs, 0, xs, 0, batch.size);
+			System.arraycopy(batch.ys, 0, ys, 0, batch.size);
+			System.arraycopy(batch.offsetsX, 0, offsetsX, 0, batch.size);
+			System.arraycopy(batch.offsetsY, 0, offsetsY, 0, batch.size);
+
+			// do not keep references to teams beyond the batch
+			if (batch.size < size)
+				Arrays.fill(teams, batch.size, size, null);
+
+			size = batch.size;
+		}
+
+		private void grow(int length) {
+			types = Arrays.copyOf(types, length);
+			teams = Arrays.copyOf(teams, length);
+			ids = Arrays.copyOf(ids, length);
+			xs = Arrays.copyOf(xs, length);
+			ys = Arrays.copyOf(ys, length);
+			offsetsX = Arrays.copyOf(offsetsX, length);
+			offsetsY = Arrays.copyOf(offsetsY, length);
+		}
+
+	}
+
+	/**
+	 * A listener with its ring of batches and its thread. The ring has a
+	 * single producer (the game) and a single consumer (the thread).
+	 */
+	private static class Subscriber implements Runnable {
+
+		private GameListener listener;
+
+		private OverflowPolicy policy;
+
+		private Batch[] ring;
+
+		private int mask;
+
+		// the next batch to be written by the game
+		private AtomicLong head = new AtomicLong(0);
+
+		// the next batch to be delivered to the listener
+		private AtomicLong tail = new AtomicLong(0);
+
+		private AtomicLong dropped = new AtomicLong(0);
+
+		private volatile boolean running = true;
+
+		private Thread thread;
+
+		private BodyPosition position = new BodyPosition(0, 0);
+
+		private Subscriber(GameListener listener, OverflowPolicy policy, int capacity) {
+
+			this.listener = listener;
+			this.policy = policy;
+
+			ring = new Batch[capacity];
+			mask = capacity - 1;
+
+			for (int i = 0; i < capacity; i++)
+				ring[i] = new Batch();
+
+			thread = new Thread(this, "Listener " + listener.getClass().getSimpleName());
+			thread.setDaemon(true);
+
+		}
+
+		/**
+		 * Copies a batch into the ring.
+		 * 
+		 * @return <code>false</code> if the listener has to be removed
+		 */
+		private boolean offer(Batch batch) {
+
+			long h = head.get();
+
+			while (h - tail.get() > mask) {
+
+				switch (policy) {
+				case BLOCK:
+					if (!running)
+						return true;
+					LockSupport.unpark(thread);
+					LockSupport.parkNanos(this, 100000L);
+					continue;
+				case DROP:
+					dropped.incrementAndGet();
+					return true;
+				default:
+					dropped.incrementAndGet();
+					return false;
+				}
+
+			}
+
+			ring[(int) h & mask].copy(batch);
+
+			head.lazySet(h + 1);
+
+			LockSupport.unpark(thread);
+
+			return true;
+		}
+
+		@Override
+		public void run() {
+
+			while (running) {
+
+				long t = tail.get();
+
+				if (t == head.get()) {
+					LockSupport.park(this);
+					continue;
+				}
+
+				deliver(ring[(int) t & mask]);
+
+				tail.lazySet(t + 1);
+
+			}
+
+		}
+
+		private void deliver(Batch batch) {
+
+			for (int i = 0; i < batch.size && running; i++) {
+
+				try {
+
+					switch (batch.types[i]) {
+					case STEP:
+						listener.step();
+						break;
+					case POSITION:
+						if (batch.xs[i] < 0) {
+							listener.position(batch.teams[i], batch.ids[i], null);
+						} else {
+							position.set(batch.xs[i], batch.ys[i], batch.offsetsX[i],
+									batch.offsetsY[i]);
+							listener.position(batch.teams[i], batch.ids[i], position);
+						}
+						break;
+					case MESSAGE:
+						listener.message(batch.teams[i], batch.ids[i], batch.xs[i],
+								batch.ys[i]);
+						break;
+					case SPAWN:
+						position.set(batch.xs[i], batch.ys[i], batch.offsetsX[i],
+								batch.offsetsY[i]);
+						listener.spawn(batch.teams[i], batch.ids[i], position);
+						break;
+					case DEATH:
+						listener.death(batch.teams[i], batch.ids[i]);
+						break;
+					}
+
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+
+			}
+
+		}
+
+		private void stop() {
+			running = false;
+			LockSupport.unpark(thread);
+		}
+
+	}
+
+	private Batch pending = new Batch();
+
+	private int capacity;
+
+	private Vector<Subscriber> subscribers = new Vector<Subscriber>();
+
+	private Subscriber[] active = new Subscriber[0];
+
+	/**
+	 * Creates a new bus.
+	 * 
+	 * @param capacity
+	 *            the number of steps that can be queued for a listener,
+	 *            rounded up to a power of two
+	 */
+	public EventBus(int capacity) {
+
+		this.capacity = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+
+	}
+
+	/**
+	 * Adds a listener that is called on its own thread.
+	 * 
+	 * @param listener
+	 *            the listener
+	 * @param policy
+	 *            what to do with a step when the queue of the listener is
+	 *            full: wait for the listener ({@link OverflowPolicy#BLOCK}),
+	 *            skip the step for this listener ({@link OverflowPolicy#DROP})
+	 *            or remove the listener ({@link OverflowPolicy#DISCONNECT})
+	 */
+	public void subscribe(GameListener listener, OverflowPolicy policy) {
+
+		Subscriber subscriber = new Subscriber(listener,
+				policy == null ? OverflowPolicy.BLOCK : policy, capacity);
+
+		synchronized (subscribers) {
+			subscribers.add(subscriber);
+			active = null;
+		}
+
+		subscriber.thread.start();
+
+	}
+
+	/**
+	 * Removes a listener. Its thread stops after the current event, the steps
+	 * that are still queued are not delivered.
+	 * 
+	 * @return <code>true</code> if the listener was subscribed
+	 */
+	public boolean unsubscribe(GameListener listener) {
+
+		synchronized (subscribers) {
+
+			for (int i = 0; i < subscribers.size(); i++) {
+
+				Subscriber subscriber = subscribers.get(i);
+
+				if (subscriber.listener != listener)
+					continue;
+
+				subscribers.remove(i);
+				active = null;
+
+				subscriber.stop();
+
+				return true;
+			}
+
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * @return the number of steps that were not delivered to the listener
+	 *         because its queue was full, or -1 if the listener is not
+	 *         subscribed
+	 */
+	public long getDropped(GameListener listener) {
+
+		synchronized (subscribers) {
+			for (int i = 0; i < subscribers.size(); i++) {
+				if (subscribers.get(i).listener == listener)
+					return subscribers.get(i).dropped.get();
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Hands the events collected since the last call to the listeners. Called
+	 * by the game at the end of a step.
+	 */
+	public void publish() {
+
+		if (pending.size == 0)
+			return;
+
+		Subscriber[] current;
+
+		synchronized (subscribers) {
+			if (active == null)
+				active = subscribers.toArray(new Subscriber[subscribers.size()]);
+			current = active;
+		}
+
+		// a blocking listener is waited for outside of the lock, so that
+		// listeners can still be removed meanwhile
+		for (int i = 0; i < current.length; i++) {
+
+			if (current[i].offer(pending))
+				continue;
+
+			Main.log("Listener %s is too slow, removed",
+					current[i].listener.getClass().getSimpleName());
+
+			unsubscribe(current[i].listener);
+		}
+
+		pending.size = 0;
+
+	}
+
+	/**
+	 * Stops the threads of all the listeners.
+	 */
+	public void close() {
+
+		synchronized (subscribers) {
+
+			for (int i = 0; i < subscribers.size(); i++)
+				subscribers.get(i).stop();
+
+			subscribers.clear();
+			active = null;
+		}
+
+	}
+
+	@Override
+	public void step() {
+		pending.add(STEP, null, 0, 0, 0, 0, 0);
+	}
+
+	@Override
+	public void position(Team team, int id, BodyPosition p) {
+
+		if (p == null)
+			pending.add(POSITION, team, id, -1, -1, 0, 0);
+		else
+			pending.add(POSITION, team, id, p.getX(), p.getY(), p.getOffsetX(), p.getOffsetY());
+
+	}
+
+	@Override
+	public void message(Team team, int from, int to, int length) {
+		pending.add(MESSAGE, team, from, to, length, 0, 0);
+	}
+
+	@Override
+	public void spawn(Team team, int id, BodyPosition p) {
+		pending.add(SPAWN, team, id, p.getX(), p.getY(), p.getOffsetX(), p.getOffsetY());
+	}
+
+	@Override
+	public void death(Team team, int id) {
+		pending.add(DEATH, team, id, 0, 0, 0, 0);
+	}
+
+}
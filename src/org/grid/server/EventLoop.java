@@ -0,0 +1,640 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.grid.protocol.BinaryCodec;
+import org.grid.protocol.Message;
+import org.grid.protocol.MessageQueue;
+import org.grid.protocol.ProtocolSocket;
+import org.grid.protocol.ProtocolSocket.CodecSwitch;
+import org.grid.protocol.ProtocolSocket.OverflowPolicy;
+import org.grid.protocol.Message.RegisterMessage;
+import org.grid.server.Dispatcher.Client;
+import org.grid.server.Dispatcher.SocketTransport;
+import org.grid.server.Dispatcher.Transport;
+
+/**
+ * A selector based event loop that serves many client connections with a
+ * single thread. The loop reads and decodes the incoming frames, hands the
+ * messages to the clients and batches all the pending outgoing messages of a
+ * client into a single write.
+ * 
+ * A connection starts in the same way as with blocking sockets: the client
+ * sends a serialized {@link RegisterMessage}. If the client supports the binary
+ * codec the connection stays in the loop, otherwise it is handed over to a
+ * {@link SocketTransport} that keeps using Java serialization.
+ */
+public class EventLoop implements Runnable {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private static final int HANDSHAKE_LIMIT = 64 * 1024;
+
+	private static final int MAX_PENDING_OUTPUT = 4 * 1024 * 1024;
+
+	private class ChannelTransport implements Transport {
+
+		private Client client;
+
+		private SocketChannel channel;
+
+		private SelectionKey key;
+
+		private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+
+		private ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+
+		private MessageQueue outQueue = new MessageQueue(ProtocolSocket.QUEUE_CAPACITY);
+
+		private AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		private BinaryCodec decoder = null;
+
+		private BinaryCodec encoder = null;
+
+		private ByteArrayOutputStream serialized = null;
+
+		private ObjectOutputStream serializer = null;
+
+		private boolean registered = false;
+
+		private volatile boolean closed = false;
+
+		private volatile boolean overflowed = false;
+
+		private volatile long flushCount = 0;
+
+		private volatile long flushedMessages = 0;
+
+		public ChannelTransport(Client client, SocketChannel channel) {
+			this.client = client;
+			this.channel = channel;
+		}
+
+		@Override
+		public void sendMessage(Message message) {
+
+			if (message == null || closed)
+				return;
+
+			if (!outQueue.offer(message)) {
+
+				// the connection is closed by the loop, the caller may hold
+				// the locks of the game
+				if (dispatcher.getOverflowPolicy() != OverflowPolicy.DISCONNECT
+						|| overflowed)
+					return;
+
+				overflowed = true;
+			}
+
+			if (scheduled.compareAndSet(false, true)) {
+
+				pending.add(this);
+
+				// messages sent from the loop itself are written at the end of
+				// the current iteration
+				if (Thread.currentThread() != thread)
+					selector.wakeup();
+			}
+
+		}
+
+		@Override
+		public void close() {
+
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+			}
+
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+
+			outQueue.clear();
+
+			client.onTerminate();
+
+		}
+
+		@Override
+		public void switchInputCodec(int version) throws IOException {
+
+			decoder = new BinaryCodec(version);
+
+		}
+
+		@Override
+		public void switchOutputCodec(int version) {
+
+			sendMessage(new CodecSwitch(version));
+
+		}
+
+		@Override
+		public long getFlushCount() {
+			return flushCount;
+		}
+
+		@Override
+		public long getFlushedMessages() {
+			return flushedMessages;
+		}
+
+		@Override
+		public InetAddress getRemoteAddress() {
+			return channel.socket().getInetAddress();
+		}
+
+		@Override
+		public int getRemotePort() {
+			return channel.socket().getPort();
+		}
+
+		private void read() {
+
+			try {
+
+				if (!input.hasRemaining())
+					input = grow(input, input.capacity() * 2);
+
+				if (channel.read(input) < 0) {
+					close();
+					return;
+				}
+
+				if (!registered)
+					handshake();
+
+				if (decoder != null)
+					decode();
+
+			} catch (IOException e) {
+				close();
+			}
+
+		}
+
+		private void handshake() throws IOException {
+
+			ByteArrayInputStream bytes = new ByteArrayInputStream(input
+					.array(), 0, input.position());
+
+			Object message;
+
+			try {
+
+				message = new ObjectInputStream(bytes).readObject();
+
+			} catch (EOFException e) {
+
+				// not everything has arrived yet
+				if (input.position() >= HANDSHAKE_LIMIT)
+					throw new IOException("Registration message too long");
+
+				return;
+
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Unknown registration message");
+			}
+
+			if (!(message instanceof RegisterMessage))
+				throw new IOException("Expected registration message");
+
+			registered = true;
+
+			if (((RegisterMessage) message).getCodec() < 1
+					|| !dispatcher.isBinaryCodecEnabled()) {
+
+				handoffs.add(this);
+
+				return;
+			}
+
+			input.flip();
+			input.position(input.limit() - bytes.available());
+			input.compact();
+
+			client.handleMessage((RegisterMessage) message);
+
+			if (decoder == null)
+				close();
+
+		}
+
+		private void decode() throws IOException {
+
+			input.flip();
+
+			int needed = 0;
+
+			while (!closed && input.remaining() >= BinaryCodec.HEADER_SIZE) {
+
+				int start = input.position();
+
+				int opcode = input.get(start) & 0xFF;
+
+				int length = input.getInt(start + 1);
+
+				if (length < 0 || length > BinaryCodec.MAX_FRAME_SIZE)
+					throw new IOException("Illegal frame length: " + length);
+
+				if (input.remaining() < BinaryCodec.HEADER_SIZE + length) {
+					needed = BinaryCodec.HEADER_SIZE + length;
+					break;
+				}
+
+				int limit = input.limit();
+
+				input.position(start + BinaryCodec.HEADER_SIZE);
+				input.limit(start + BinaryCodec.HEADER_SIZE + length);
+
+				Message message = decoder.decode(opcode, input);
+
+				input.limit(limit);
+				input.position(start + BinaryCodec.HEADER_SIZE + length);
+
+				if (message != null)
+					client.handleMessage(message);
+
+			}
+
+			input.compact();
+
+			if (needed > input.capacity())
+				input = grow(input, needed);
+
+		}
+
+		private void handoff() {
+
+			try {
+
+				key.cancel();
+
+				selector.selectNow();
+
+				channel.configureBlocking(true);
+
+				new SocketTransport(client, channel.socket(), Arrays.copyOf(
+						input.array(), input.position()));
+
+			} catch (IOException e) {
+				close();
+			}
+
+		}
+
+		private void drain() {
+
+			scheduled.set(false);
+
+			if (overflowed) {
+				Main.log("Client %s is not reading, closing connection", client);
+				close();
+				return;
+			}
+
+			int written = 0;
+
+			try {
+
+				while (!closed) {
+
+					Message message = outQueue.poll();
+
+					if (message == null)
+						break;
+
+					if (message instanceof CodecSwitch) {
+						encoder = new BinaryCodec(((CodecSwitch) message).getVersion());
+						continue;
+					}
+
+					if (encoder == null) {
+
+						if (serializer == null) {
+							serialized = new ByteArrayOutputStream();
+							serializer = new ObjectOutputStream(serialized);
+						}
+
+						serializer.writeObject(message);
+						serializer.flush();
+
+						append(ByteBuffer.wrap(serialized.toByteArray()));
+
+						serialized.reset();
+
+					} else {
+
+						ByteBuffer frame = encoder.encode(message);
+
+						if (frame != null)
+							append(frame);
+
+						client.released(message);
+
+					}
+
+					written++;
+
+				}
+
+				if (written > 0) {
+					flushCount++;
+					flushedMessages += written;
+				}
+
+				flush();
+
+			} catch (IOException e) {
+				close();
+			}
+
+		}
+
+		private void append(ByteBuffer data) throws IOException {
+
+			if (output.remaining() < data.remaining()) {
+
+				if (output.position() + data.remaining() > MAX_PENDING_OUTPUT) {
+					Main.log("Client %s is not reading, closing connection", client);
+					throw new IOException("Output buffer overflow");
+				}
+
+				output = grow(output, Math.max(output.capacity() * 2, output
+						.position()
+						+ data.remaining()));
+			}
+
+			output.put(data);
+
+		}
+
+		private void flush() throws IOException {
+
+			if (key == null || !key.isValid())
+				return;
+
+			output.flip();
+
+			try {
+				channel.write(output);
+			} finally {
+				output.compact();
+			}
+
+			int ops = output.position() > 0 ? SelectionKey.OP_READ
+					| SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+
+			if (key.interestOps() != ops)
+				key.interestOps(ops);
+
+		}
+
+	}
+
+	private Dispatcher dispatcher;
+
+	private Selector selector;
+
+	private Thread thread = null;
+
+	private volatile boolean stopped = false;
+
+	private ConcurrentLinkedQueue<ChannelTransport> registrations = new ConcurrentLinkedQueue<ChannelTransport>();
+
+	private ConcurrentLinkedQueue<ChannelTransport> pending = new ConcurrentLinkedQueue<ChannelTransport>();
+
+	private ConcurrentLinkedQueue<ChannelTransport> handoffs = new ConcurrentLinkedQueue<ChannelTransport>();
+
+	public EventLoop(Dispatcher dispatcher) throws IOException {
+
+		this.dispatcher = dispatcher;
+
+		this.selector = Selector.open();
+
+	}
+
+	/**
+	 * Adds a new connection to the loop. Can be called from any thread.
+	 * 
+	 * @param client
+	 *            the client that will handle the messages
+	 * @param channel
+	 *            the connected channel
+	 * @throws IOException
+	 */
+	public void register(Client client, SocketChannel channel)
+			throws IOException {
+
+		channel.configureBlocking(false);
+
+		ChannelTransport transport = new ChannelTransport(client, channel);
+
+		client.attach(transport);
+
+		registrations.add(transport);
+
+		// the loop may have stopped after the check in the dispatcher
+		if (stopped) {
+			closeRegistrations();
+			return;
+		}
+
+		selector.wakeup();
+
+	}
+
+	/**
+	 * Returns <code>true</code> if the loop has stopped because its selector
+	 * failed. Connections registered with a stopped loop are closed.
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	@Override
+	public void run() {
+
+		thread = Thread.currentThread();
+
+		while (true) {
+
+			try {
+
+				selector.select();
+
+			} catch (IOException e) {
+				// the selector is broken, retrying would only spin
+				stop(e.toString());
+				return;
+			} catch (ClosedSelectorException e) {
+				stop("selector closed");
+				return;
+			}
+
+			try {
+
+				while (true) {
+
+					ChannelTransport transport = registrations.poll();
+
+					if (transport == null)
+						break;
+
+					if (transport.closed)
+						continue;
+
+					try {
+						transport.key = transport.channel.register(selector,
+								SelectionKey.OP_READ, transport);
+					} catch (ClosedChannelException e) {
+						transport.close();
+						continue;
+					}
+
+					// the client may have been given something to send already
+					transport.drain();
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+
+				while (keys.hasNext()) {
+
+					SelectionKey key = keys.next();
+
+					keys.remove();
+
+					ChannelTransport transport = (ChannelTransport) key
+							.attachment();
+
+					try {
+
+						if (key.isValid() && key.isReadable())
+							transport.read();
+
+						if (key.isValid() && key.isWritable())
+							transport.drain();
+
+					} catch (CancelledKeyException e) {
+						transport.close();
+					}
+
+				}
+
+				while (true) {
+
+					ChannelTransport transport = handoffs.poll();
+
+					if (transport == null)
+						break;
+
+					transport.handoff();
+				}
+
+				while (true) {
+
+					ChannelTransport transport = pending.poll();
+
+					if (transport == null)
+						break;
+
+					transport.drain();
+				}
+
+			} catch (ClosedSelectorException e) {
+				stop("selector closed");
+				return;
+			}
+
+		}
+
+	}
+
+	private void stop(String reason) {
+
+		Main.log("Event loop %s stopped: %s", thread.getName(), reason);
+
+		stopped = true;
+
+		try {
+			for (SelectionKey key : selector.keys().toArray(
+					new SelectionKey[0]))
+				((ChannelTransport) key.attachment()).close();
+		} catch (ClosedSelectorException e) {
+		}
+
+		closeRegistrations();
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+
+	}
+
+	private void closeRegistrations() {
+
+		while (true) {
+
+			ChannelTransport transport = registrations.poll();
+
+			if (transport == null)
+				break;
+
+			transport.close();
+		}
+
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+
+		ByteBuffer larger = ByteBuffer.allocate(capacity);
+
+		buffer.flip();
+
+		larger.put(buffer);
+
+		return larger;
+	}
+
+}
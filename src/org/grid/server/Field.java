@@ -24,19 +24,23 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 import java.util.Vector;
 
 import javax.imageio.ImageIO;
 
 import org.grid.arena.Arena;
+import org.grid.protocol.Neighborhood;
 import org.grid.protocol.Position;
 import org.grid.server.Game.FlagMode;
+import org.grid.server.Team.Flag;
+import org.grid.server.Team.Headquarters;
 import org.grid.server.Team.TeamBody;
 
 
@@ -118,6 +122,17 @@ public class Field implements Arena {
 			this.offsetY = p.offsetY;
 		}
 		
+		/**
+		 * Sets all the coordinates at once without normalizing the offsets.
+		 * Used to reuse a position object.
+		 */
+		public void set(int x, int y, float offsetX, float offsetY) {
+			setX(x);
+			setY(y);
+			this.offsetX = offsetX;
+			this.offsetY = offsetY;
+		}
+		
 		public String toString() {
 			return String.format("Body position: %d, %d offset: %.1f, %.1f", getX(), getY(), offsetX, offsetY);
 		}
@@ -132,6 +147,12 @@ public class Field implements Arena {
 		
 		private int tile;
 		
+		/**
+		 * Index of the body in the position store of the field, -1 if the body
+		 * is not on the field.
+		 */
+		private volatile int slot = -1;
+		
 		public Body(int tile) {
 			this.tile = tile;
 		}
@@ -247,105 +268,185 @@ public class Field implements Arena {
 		
 	}
 	
+	/**
+	 * A view of a single cell of the field. The state of the cells is kept in
+	 * packed arrays, cell objects are created on demand and only refer to
+	 * them.
+	 */
 	public class Cell {
 
-		private Position position;
-		
-		private float offsetX = 0, offsetY = 0;
-		
-		private Body body = null;
-		
-		private int tile;
+		private int index;
 		
-		protected Cell(Position position, int tile) {
+		protected Cell(int index) {
 
-			this.position = position;
-			this.tile = tile;
+			this.index = index;
 			
 		}
 		
 		public boolean isEmpty() {
 			
-			return body == null;
+			return cellBodies[index] == 0;
 			
 		}
 		
 		public int getTile() {
 			
-			return tile;
+			return tiles[index];
 			
 		}
 
 		public Body getBody() {
 			
-			return body;
+			return bodyAt(index);
 			
 		}
 		
 		public Position getPosition() {
-			return new Position(this.position);
+			return new Position(index % width, index / width);
 		}
 		
 		private boolean placeBody(Body body, float offsetX, float offsetY) {
 			
-			if (!isEmpty() && this.body != body) 
-				return false;
-				
-			synchronized (positions) {
-				Cell c = positions.get(body);
-				
-				if (c != null) 
-					c.body = null;
-
-				positions.remove(body);
-				positions.put(body, this);
-				this.body = body;				
-			}
-
-			this.offsetX = offsetX;
-			
-			this.offsetY = offsetY;
+			return place(index, body, offsetX, offsetY);
 			
-			return true;
 		}
 		
 		public float getBodyOffsetX() {
-			return offsetX;
+			Body b = getBody();
+			return b == null ? 0 : getOffsetX(b);
 		}
 
 		public float getBodyOffsetY() {
-			return offsetY;
+			Body b = getBody();
+			return b == null ? 0 : getOffsetY(b);
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Cell && ((Cell) obj).index == index;
+		}
+		
+		@Override
+		public int hashCode() {
+			return index;
 		}
 		
 		@Override
 		public String toString() {
-			return String.format("Cell [%d, %d]", position.getX(), position.getY());
+			return String.format("Cell [%d, %d]", index % width, index / width);
 		}
 		
 	}
 	
-	private Hashtable<Body, Cell> positions = new Hashtable<Body, Cell>();
+	// Walls do not have a state, one instance per tile is shared by all the
+	// cells
+	private static final Wall[] WALLS = new Wall[10];
+	
+	static {
+		for (int i = 0; i < WALLS.length; i++)
+			WALLS[i] = new Wall(Arena.TILE_WALL_0 + i);
+	}
+	
+	// Positions of the bodies on the field, indexed by the slot of the body.
+	// Slots are allocated when a body is put on the field for the first time
+	// and released when it is removed. The arrays are only written by the
+	// thread that runs the game step, readers check the slot against the
+	// capacity that is published after the arrays.
+	
+	private static final int INITIAL_CAPACITY = 64;
+	
+	private Body[] bodies = new Body[INITIAL_CAPACITY];
 	
-	private Cell[] cells; 
+	private int[] bodyCell = new int[INITIAL_CAPACITY];
+	
+	private int[] bodyX = new int[INITIAL_CAPACITY];
+	
+	private int[] bodyY = new int[INITIAL_CAPACITY];
+	
+	private float[] bodyOffsetX = new float[INITIAL_CAPACITY];
+	
+	private float[] bodyOffsetY = new float[INITIAL_CAPACITY];
+	
+	private int[] freeSlots = new int[INITIAL_CAPACITY];
+	
+	// What a body looks like in a scan: the team it belongs to and its
+	// neighborhood code for the own team and for the other teams
+	
+	private Team[] bodyTeam = new Team[INITIAL_CAPACITY];
+	
+	private int[] ownCode = new int[INITIAL_CAPACITY];
+	
+	private int[] otherCode = new int[INITIAL_CAPACITY];
+	
+	private int freeCount = 0;
+	
+	private int slotCount = 0;
+	
+	private volatile int capacity = INITIAL_CAPACITY;
+	
+	// State of the cells in row-major order: the base tile and the content
+	// of the cell, 0 for an empty cell, slot + 1 for a body and -(n + 1) for
+	// the n-th wall.
+	
+	private byte[] tiles;
+	
+	private int[] cellBodies;
 	
 	private int width, height;
 	
+	// Cells that have changed since the last and the one but last
+	// publication of a snapshot, a negative count means that too many cells
+	// have changed to track them.
+	
+	private int[] dirty = new int[INITIAL_CAPACITY];
+	
+	private int dirtyCount = 0;
+	
+	private int[] previousDirty = new int[INITIAL_CAPACITY];
+	
+	private int previousDirtyCount = 0;
+	
+	private FieldSnapshot[] snapshots;
+	
+	private volatile FieldSnapshot published = null;
+	
+	// Empty cells with an empty neighborhood, kept up to date whenever the
+	// content of a cell changes. The cells are stored densely in spawnable,
+	// spawnablePosition holds the position of a cell in it (or -1), so that
+	// cells can be added, removed and sampled in constant time.
+	
+	private int[] spawnable;
+	
+	private int[] spawnablePosition;
+	
+	private int spawnableCount;
+	
 	public Field(int width, int height) {
+		this(width, height, new Random());
+	}
+	
+	public Field(int width, int height, Random random) {
 		
 		this.width = width;
 		this.height = height;
-		cells = new Cell[width * height];
 		
-		int n = 0;
+		tiles = new byte[width * height];
+		cellBodies = new int[width * height];
 		
-		for (int j = 0; j < height; j++) {
-			for (int i = 0; i < width; i++) {
-				
-				int grass = ((int) (Math.random() * 10)) % 9;
-				
-				cells[n++] = new Cell(new Position(i, j), grass);
-				
-			}
+		snapshots = new FieldSnapshot[] {new FieldSnapshot(width, height), new FieldSnapshot(width, height)};
+		
+		// initially every cell is empty
+		spawnable = new int[width * height];
+		spawnablePosition = new int[width * height];
+		spawnableCount = spawnable.length;
+		
+		for (int n = 0; n < spawnable.length; n++) {
+			spawnable[n] = n;
+			spawnablePosition[n] = n;
+		}
+		
+		for (int n = 0; n < tiles.length; n++) {
+			tiles[n] = (byte) random.nextInt(9);
 		}
 		
 	}
@@ -360,7 +461,7 @@ public class Field implements Arena {
 		Set<Position>[] flags = new Set[25];
 		
 		for (int i = 0; i < 25; i++)
-			flags[i] = new HashSet<Position>();
+			flags[i] = new LinkedHashSet<Position>();
 		
 		Position[] hqs = new Position[25];
 		
@@ -370,13 +471,15 @@ public class Field implements Arena {
 			size = loadImage(f, flags, hqs, walls);
 		}
 		
-		Field arena = new Field(size.width, size.height);
+		Random random = game.getRandom();
+		
+		Field arena = new Field(size.width, size.height, random);
 		
 		for (Position p : walls) {
 			
-			int wall = Arena.TILE_WALL_0 + ((int) (Math.random() * 10)) % 9;
+			int wall = random.nextInt(9);
 			
-			arena.getCell(p.getX(), p.getY()).body = new Wall(wall);
+			arena.setContent(p.getY() * arena.width + p.getX(), -(wall + 1));
 			
 		}
 		
@@ -525,15 +628,418 @@ public class Field implements Arena {
 		if (x < 0 || x >= width || y < 0 || y >= height)
 			return null;
 		
-		return cells[y * width + x]; 
+		return new Cell(y * width + x); 
+		
+	}
+	
+	/**
+	 * Returns the body in a cell without creating a cell object.
+	 * 
+	 * @return the body or <code>null</code> if the cell is empty or outside
+	 *         of the field
+	 */
+	public Body getBody(int x, int y) {
+		
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return null;
+		
+		return bodyAt(y * width + x);
+		
+	}
+	
+	private Body bodyAt(int index) {
+		
+		int content = cellBodies[index];
+		
+		if (content == 0)
+			return null;
+		
+		if (content < 0)
+			return WALLS[-content - 1];
+		
+		Body[] bodies = this.bodies;
+		
+		return content - 1 < bodies.length ? bodies[content - 1] : null;
+		
+	}
+	
+	private boolean place(int index, Body body, float offsetX, float offsetY) {
+		
+		int content = cellBodies[index];
+		
+		int slot = body.slot;
+		
+		if (content != 0 && (slot < 0 || content != slot + 1)) 
+			return false;
+		
+		boolean allocated = slot < 0;
+		
+		if (allocated) {
+			slot = allocateSlot(body);
+		} else if (bodyCell[slot] != index && cellBodies[bodyCell[slot]] == slot + 1) {
+			setContent(bodyCell[slot], 0);
+		}
+
+		bodyCell[slot] = index;
+		bodyX[slot] = index % width;
+		bodyY[slot] = index / width;
+		bodyOffsetX[slot] = offsetX;
+		bodyOffsetY[slot] = offsetY;
+		
+		// the slot is published after the position is written
+		if (allocated)
+			body.slot = slot;
+		
+		if (content != slot + 1)
+			setContent(index, slot + 1);
 		
+		return true;
 	}
 
 	public BodyPosition getPosition(Body body) {
 		
-		Cell cell = positions.get(body);
+		int slot = slotOf(body);
+		
+		return slot < 0 ? null : new BodyPosition(bodyX[slot], bodyY[slot], bodyOffsetX[slot], bodyOffsetY[slot]);
+	}
+	
+	/**
+	 * Copies the position of a body to the given object without allocating a
+	 * new one.
+	 * 
+	 * @param body
+	 *            the body
+	 * @param position
+	 *            the position to fill in
+	 * @return <code>false</code> if the body is not on the field
+	 */
+	public boolean getPosition(Body body, BodyPosition position) {
+		
+		int slot = slotOf(body);
+		
+		if (slot < 0)
+			return false;
+		
+		position.set(bodyX[slot], bodyY[slot], bodyOffsetX[slot], bodyOffsetY[slot]);
+		
+		return true;
+	}
+	
+	public boolean contains(Body body) {
+		return slotOf(body) >= 0;
+	}
+	
+	/**
+	 * Returns the x coordinate of the cell of a body or -1 if the body is not
+	 * on the field.
+	 */
+	public int getX(Body body) {
+		int slot = slotOf(body);
+		return slot < 0 ? -1 : bodyX[slot];
+	}
+	
+	/**
+	 * Returns the y coordinate of the cell of a body or -1 if the body is not
+	 * on the field.
+	 */
+	public int getY(Body body) {
+		int slot = slotOf(body);
+		return slot < 0 ? -1 : bodyY[slot];
+	}
+	
+	public float getOffsetX(Body body) {
+		int slot = slotOf(body);
+		return slot < 0 ? 0 : bodyOffsetX[slot];
+	}
+
+	public float getOffsetY(Body body) {
+		int slot = slotOf(body);
+		return slot < 0 ? 0 : bodyOffsetY[slot];
+	}
+	
+	private int slotOf(Body body) {
+		
+		int slot = body.slot;
+		
+		return slot < capacity ? slot : -1;
+	}
+	
+	private synchronized int allocateSlot(Body body) {
+		
+		int slot;
+		
+		if (freeCount > 0) {
+			slot = freeSlots[--freeCount];
+		} else {
+			
+			if (slotCount == bodies.length) {
+				
+				int size = bodies.length * 2;
+				
+				bodies = Arrays.copyOf(bodies, size);
+				bodyCell = Arrays.copyOf(bodyCell, size);
+				bodyX = Arrays.copyOf(bodyX, size);
+				bodyY = Arrays.copyOf(bodyY, size);
+				bodyOffsetX = Arrays.copyOf(bodyOffsetX, size);
+				bodyOffsetY = Arrays.copyOf(bodyOffsetY, size);
+				freeSlots = Arrays.copyOf(freeSlots, size);
+				bodyTeam = Arrays.copyOf(bodyTeam, size);
+				ownCode = Arrays.copyOf(ownCode, size);
+				otherCode = Arrays.copyOf(otherCode, size);
+				
+				capacity = size;
+			}
+			
+			slot = slotCount++;
+		}
+		
+		bodies[slot] = body;
+		bodyCell[slot] = -1;
+		
+		bodyTeam[slot] = body instanceof TeamBody ? ((TeamBody) body).getTeam() : null;
+		
+		if (body instanceof Headquarters) {
+			ownCode[slot] = Neighborhood.HEADQUARTERS;
+			otherCode[slot] = Neighborhood.OTHER_HEADQUARTERS;
+		} else if (body instanceof Flag) {
+			ownCode[slot] = Neighborhood.FLAG;
+			otherCode[slot] = Neighborhood.OTHER_FLAG;
+		} else if (body instanceof Agent) {
+			ownCode[slot] = ((Agent) body).getId();
+			otherCode[slot] = Neighborhood.OTHER;
+		} else {
+			ownCode[slot] = Neighborhood.EMPTY;
+			otherCode[slot] = Neighborhood.EMPTY;
+		}
+		
+		return slot;
+	}
+	
+	private synchronized void releaseSlot(Body body) {
+		
+		int slot = body.slot;
+		
+		if (slot < 0)
+			return;
+		
+		body.slot = -1;
+		bodies[slot] = null;
+		bodyTeam[slot] = null;
+		bodyCell[slot] = -1;
+		freeSlots[freeCount++] = slot;
+		
+	}
+	
+	/**
+	 * Copies the surroundings of a body, as it was at the end of the last
+	 * published step, to a grid of (2 * size + 1)^2 cells (see
+	 * {@link FieldSnapshot}). Can be called from any thread without locking.
+	 * 
+	 * @param body
+	 *            the body in the center
+	 * @param size
+	 *            the size of the neighborhood
+	 * @param team
+	 *            the team of the observer
+	 * @param grid
+	 *            the grid to fill
+	 * @return the step of the snapshot or -1 if the body was not on the field
+	 */
+	public int scan(Body body, int size, Team team, int[] grid) {
+		
+		FieldSnapshot snapshot = published;
+		
+		if (snapshot == null)
+			return -1;
+		
+		return snapshot.scan(body, body.slot, size, team, grid);
+		
+	}
+	
+	/**
+	 * Publishes the current content of the field as a snapshot for
+	 * {@link #scan(Body, int, Team, int[])}. Has to be called by the thread
+	 * that modifies the field, at the end of a step.
+	 * 
+	 * @param step
+	 *            the step number
+	 */
+	public void publish(int step) {
+		
+		FieldSnapshot snapshot = snapshots[0] == published ? snapshots[1] : snapshots[0];
+		
+		long stamp = snapshot.beginUpdate();
+		
+		try {
+			
+			// the snapshot was last updated two publications ago, it misses
+			// the changes of both intervals
+			if (!snapshot.isComplete() || dirtyCount < 0 || previousDirtyCount < 0) {
+				snapshot.copyContent(cellBodies);
+			} else {
+				snapshot.copyContent(cellBodies, previousDirty, previousDirtyCount);
+				snapshot.copyContent(cellBodies, dirty, dirtyCount);
+			}
+			
+			synchronized (this) {
+				snapshot.copySlots(bodies, bodyTeam, ownCode, otherCode, bodyX, bodyY, slotCount);
+			}
+			
+		} finally {
+			snapshot.endUpdate(stamp, step);
+		}
+		
+		published = snapshot;
+		
+		int[] swap = previousDirty;
+		previousDirty = dirty;
+		previousDirtyCount = dirtyCount;
+		dirty = swap;
+		dirtyCount = 0;
+		
+	}
+	
+	/**
+	 * Changes the content of a cell and updates the bookkeeping that depends
+	 * on it: the cells changed since the last snapshot and the spawnable cells.
+	 */
+	private void setContent(int index, int content) {
+		
+		cellBodies[index] = content;
+		
+		markDirty(index);
+		
+		int x = index % width;
+		
+		updateSpawnable(index);
+		
+		if (x > 0)
+			updateSpawnable(index - 1);
+		
+		if (x < width - 1)
+			updateSpawnable(index + 1);
+		
+		if (index >= width)
+			updateSpawnable(index - width);
+		
+		if (index + width < cellBodies.length)
+			updateSpawnable(index + width);
+		
+	}
+	
+	private boolean isSpawnable(int index) {
+		
+		int[] content = cellBodies;
+		
+		if (content[index] != 0)
+			return false;
+		
+		int x = index % width;
+		
+		if (x > 0 && content[index - 1] != 0)
+			return false;
+		
+		if (x < width - 1 && content[index + 1] != 0)
+			return false;
+		
+		if (index >= width && content[index - width] != 0)
+			return false;
+		
+		if (index + width < content.length && content[index + width] != 0)
+			return false;
+		
+		return true;
+	}
+	
+	private void updateSpawnable(int index) {
+		
+		int position = spawnablePosition[index];
+		
+		if (isSpawnable(index)) {
+			
+			if (position < 0) {
+				spawnable[spawnableCount] = index;
+				spawnablePosition[index] = spawnableCount++;
+			}
+			
+		} else if (position >= 0) {
+			
+			int last = spawnable[--spawnableCount];
+			
+			spawnable[position] = last;
+			spawnablePosition[last] = position;
+			spawnablePosition[index] = -1;
+			
+		}
+		
+	}
+	
+	/**
+	 * Returns the number of empty cells with an empty neighborhood, i.e. the
+	 * cells that {@link #listEmptyFields(boolean)} would return for
+	 * <code>true</code>.
+	 */
+	public int countSpawnableCells() {
+		
+		return spawnableCount;
+		
+	}
+	
+	/**
+	 * Picks distinct random empty cells with an empty neighborhood. The cells
+	 * are picked from the current state, nothing is placed on the field.
+	 * 
+	 * @param random
+	 *            the random generator
+	 * @param count
+	 *            the number of cells
+	 * @param cells
+	 *            the list to which the cells are added
+	 * @return <code>false</code> (and no cells) if there are less than
+	 *         <code>count</code> such cells
+	 */
+	public boolean sampleSpawnableCells(Random random, int count, List<Cell> cells) {
+		
+		if (count > spawnableCount)
+			return false;
+		
+		// partial shuffle of the set, its order does not matter
+		for (int i = 0; i < count; i++) {
+			
+			int j = i + random.nextInt(spawnableCount - i);
+			
+			int a = spawnable[i], b = spawnable[j];
+			
+			spawnable[i] = b;
+			spawnable[j] = a;
+			spawnablePosition[b] = i;
+			spawnablePosition[a] = j;
+			
+			cells.add(new Cell(b));
+		}
+		
+		return true;
+		
+	}
+	
+	private void markDirty(int index) {
+		
+		if (dirtyCount < 0)
+			return;
+		
+		// after too many changes it is cheaper to copy everything
+		if (dirtyCount == dirty.length) {
+			
+			if (dirty.length * 8 >= cellBodies.length) {
+				dirtyCount = -1;
+				return;
+			}
+			
+			dirty = Arrays.copyOf(dirty, dirty.length * 2);
+		}
+		
+		dirty[dirtyCount++] = index;
 		
-		return cell == null ? null : new BodyPosition(cell.position, cell.offsetX, cell.offsetY);
 	}
 	
 	public Collection<Cell> getNeighborhood(int x, int y) {
@@ -565,12 +1071,16 @@ public class Field implements Arena {
 	
 	public boolean putBody(Body body, BodyPosition position) {
 		
-		Cell cell = getCell(position.getX(), position.getY());
+		return putBody(body, position.getX(), position.getY(), position.getOffsetX(), position.getOffsetY());
 		
-		if (cell == null)
+	}
+	
+	public boolean putBody(Body body, int x, int y, float offsetX, float offsetY) {
+		
+		if (x < 0 || x >= width || y < 0 || y >= height)
 			return false;
 		
-		return cell.placeBody(body, position.getOffsetX(), position.getOffsetY());
+		return place(y * width + x, body, offsetX, offsetY);
 		
 	}
 	
@@ -599,67 +1109,60 @@ public class Field implements Arena {
 	
 	public void removeBody(Body body) {
 		
-		BodyPosition bp = getPosition(body);
+		int slot = slotOf(body);
 		
-		if (bp == null)
+		if (slot < 0)
 			return;
 		
-		Cell cell = getCell(bp.getX(), bp.getY());
+		int index = bodyCell[slot];
 		
-		if (cell == null)
-			return;
+		if (index >= 0 && cellBodies[index] == slot + 1)
+			setContent(index, 0);
 		
-		synchronized (positions) {
-			cell.body = null;
-			positions.remove(body);			
-		}
+		releaseSlot(body);
 
 	}
 
 	@Override
 	public int getBodyTile(int x, int y) {
 
-		Cell c = getCell(x, y);
-		if (c != null && c.getBody() != null)
-			return c.getBody().getTile();
-
-		return 0;
+		Body b = getBody(x, y);
+		
+		return b == null ? 0 : b.getTile();
 	}
 
 	@Override
 	public float getBodyOffsetX(int x, int y) {
-		Cell c = getCell(x, y);
-		if (c != null && c.getBody() != null)
-			return c.getBodyOffsetX();
-
-		return 0;
+		
+		Body b = getBody(x, y);
+		
+		return b == null ? 0 : getOffsetX(b);
 	}
 
 	@Override
 	public float getBodyOffsetY(int x, int y) {
-		Cell c = getCell(x, y);
-		if (c != null && c.getBody() != null)
-			return c.getBodyOffsetY();
-
-		return 0;
+		
+		Body b = getBody(x, y);
+		
+		return b == null ? 0 : getOffsetY(b);
 	}
 
 	@Override
 	public int getBaseTile(int x, int y) {
 
-		Cell c = getCell(x, y);
-		if (c != null)
-			return c.getTile();
-
-		return 0;
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return 0;
+		
+		return tiles[y * width + x];
 	}
 
 	@Override
 	public Color getBodyColor(int x, int y) {
-		Cell c = getCell(x, y);
-		if (c != null && c.getBody() != null
-				&& (c.getBody() instanceof TeamBody))
-			return ((TeamBody) c.getBody()).getTeam().getColor();
+		
+		Body b = getBody(x, y);
+		
+		if (b instanceof TeamBody)
+			return ((TeamBody) b).getTeam().getColor();
 
 		return null;
 	}
@@ -668,30 +1171,35 @@ public class Field implements Arena {
 		
 		Vector<Cell> list = new Vector<Cell>();
 		
+		int[] content = cellBodies;
+		
 		for (int j = 0; j < height; j++) {
 		
+			int row = j * width;
+			
 			for (int i = 0; i < width; i++) {
 				
-				Cell c = cells[j * width + i];
+				int n = row + i;
 				
-				if (!c.isEmpty()) continue;
+				if (content[n] != 0) continue;
 				
 				if (emptyNeighborhood) {
 					
-					boolean empty = true;
+					if (i > 0 && content[n - 1] != 0)
+						continue;
 					
-					for (Cell n : getNeighborhood(i, j)) {
-						
-						empty &= n.isEmpty();
-						
-					}
+					if (i < width - 1 && content[n + 1] != 0)
+						continue;
+					
+					if (j > 0 && content[n - width] != 0)
+						continue;
 					
-					if (!empty)
+					if (j < height - 1 && content[n + width] != 0)
 						continue;
 						
 				}
 				
-				list.add(c);
+				list.add(new Cell(n));
 				
 			}
 			
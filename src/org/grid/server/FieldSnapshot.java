@@ -0,0 +1,219 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+import org.grid.protocol.Neighborhood;
+import org.grid.server.Field.Body;
+
+/**
+ * A copy of the content of the field as it was at the end of a game step.
+ * The field keeps two snapshots and updates them alternately, so the one
+ * that is read by the clients is not modified while the next step is
+ * computed.
+ * 
+ * Readers do not lock: they read optimistically and validate the stamp of
+ * the snapshot afterwards (see {@link StampedLock#tryOptimisticRead()}). A
+ * read only has to be repeated when a reader is so slow that the snapshot is
+ * updated again while it is reading, i.e. two steps later.
+ */
+class FieldSnapshot {
+
+	private StampedLock lock = new StampedLock();
+
+	private int step = -1;
+
+	private int width, height;
+
+	private int[] content;
+
+	private Body[] bodies = new Body[0];
+
+	private Team[] teams = new Team[0];
+
+	private int[] own = new int[0], other = new int[0];
+
+	private int[] x = new int[0], y = new int[0];
+
+	private boolean complete = false;
+
+	FieldSnapshot(int width, int height) {
+
+		this.width = width;
+		this.height = height;
+		this.content = new int[width * height];
+
+	}
+
+	/**
+	 * Starts an update of the snapshot. Readers that are reading the snapshot
+	 * at the time will fail to validate and retry.
+	 */
+	long beginUpdate() {
+		return lock.writeLock();
+	}
+
+	void endUpdate(long stamp, int step) {
+		this.step = step;
+		lock.unlockWrite(stamp);
+	}
+
+	boolean isComplete() {
+		return complete;
+	}
+
+	void copyContent(int[] source) {
+		System.arraycopy(source, 0, content, 0, content.length);
+		complete = true;
+	}
+
+	void copyContent(int[] source, int[] indices, int count) {
+		for (int i = 0; i < count; i++)
+			content[indices[i]] = source[indices[i]];
+	}
+
+	void copySlots(Body[] bodies, Team[] teams, int[] own, int[] other, int[] x, int[] y, int count) {
+
+		if (this.bodies.length < count) {
+			int size = Math.max(count, this.bodies.length * 2);
+			this.bodies = new Body[size];
+			this.teams = new Team[size];
+			this.own = new int[size];
+			this.other = new int[size];
+			this.x = new int[size];
+			this.y = new int[size];
+		}
+
+		System.arraycopy(bodies, 0, this.bodies, 0, count);
+		System.arraycopy(teams, 0, this.teams, 0, count);
+		System.arraycopy(own, 0, this.own, 0, count);
+		System.arraycopy(other, 0, this.other, 0, count);
+		System.arraycopy(x, 0, this.x, 0, count);
+		System.arraycopy(y, 0, this.y, 0, count);
+
+		if (count < this.bodies.length) {
+			Arrays.fill(this.bodies, count, this.bodies.length, null);
+			Arrays.fill(this.teams, count, this.teams.length, null);
+		}
+
+	}
+
+	/**
+	 * Copies the surroundings of a body, as seen by a member of the given
+	 * team, to a grid of (2 * size + 1)^2 cells. The grid is filled row by row
+	 * with the codes of {@link Neighborhood}, cells outside of the field are
+	 * walls. Nothing is allocated.
+	 * 
+	 * @param body
+	 *            the body in the center
+	 * @param slot
+	 *            the slot of the body
+	 * @param size
+	 *            the size of the neighborhood
+	 * @param team
+	 *            the team of the observer
+	 * @param grid
+	 *            the grid to fill
+	 * @return the step of the snapshot or -1 if the body was not on the field
+	 *         at that step
+	 */
+	int scan(Body body, int slot, int size, Team team, int[] grid) {
+
+		long stamp = lock.tryOptimisticRead();
+
+		if (stamp != 0) {
+
+			int result = read(body, slot, size, team, grid);
+
+			if (lock.validate(stamp))
+				return result;
+
+		}
+
+		// the snapshot is being updated, wait for the writer
+		stamp = lock.readLock();
+
+		try {
+			return read(body, slot, size, team, grid);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+
+	}
+
+	private int read(Body body, int slot, int size, Team team, int[] grid) {
+
+		// the arrays may be replaced by an update, an optimistic read must
+		// not fail because of that, the result is discarded anyway
+		Body[] bodies = this.bodies;
+		Team[] teams = this.teams;
+		int[] own = this.own;
+		int[] other = this.other;
+		int[] content = this.content;
+
+		int capacity = Math.min(Math.min(bodies.length, teams.length), Math.min(own.length, other.length));
+
+		if (slot < 0 || slot >= capacity || slot >= this.x.length || slot >= this.y.length || bodies[slot] != body)
+			return -1;
+
+		int x = this.x[slot];
+		int y = this.y[slot];
+
+		int side = 2 * size + 1;
+
+		int k = 0;
+
+		for (int j = y - size; j <= y + size; j++) {
+
+			if (j < 0 || j >= height) {
+				Arrays.fill(grid, k, k + side, Neighborhood.WALL);
+				k += side;
+				continue;
+			}
+
+			int row = j * width;
+
+			for (int i = x - size; i <= x + size; i++, k++) {
+
+				if (i < 0 || i >= width) {
+					grid[k] = Neighborhood.WALL;
+					continue;
+				}
+
+				int c = content[row + i];
+
+				if (c == 0) {
+					grid[k] = Neighborhood.EMPTY;
+				} else if (c < 0) {
+					grid[k] = Neighborhood.WALL;
+				} else if (c > capacity) {
+					grid[k] = Neighborhood.EMPTY;
+				} else {
+					grid[k] = teams[c - 1] == team ? own[c - 1] : other[c - 1];
+				}
+
+			}
+		}
+
+		return step;
+
+	}
+
+}
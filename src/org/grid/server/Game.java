@@ -21,22 +21,22 @@ import java.awt.Color;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Properties;
+import java.util.Random;
 import java.util.Vector;
 
+import org.grid.protocol.Message;
 import org.grid.protocol.Neighborhood;
+import org.grid.protocol.Message.BroadcastMessage;
 import org.grid.protocol.Message.Direction;
+import org.grid.protocol.Message.SendMessage;
+import org.grid.protocol.ProtocolSocket.OverflowPolicy;
 import org.grid.server.Dispatcher.Client;
 import org.grid.server.Field.BodyPosition;
 import org.grid.server.Field.Cell;
-import org.grid.server.Field.Wall;
-import org.grid.server.Team.Flag;
 import org.grid.server.Team.Headquarters;
-import org.grid.server.Team.TeamBody;
 
 
 public class Game {
@@ -51,35 +51,6 @@ public class Game {
 		UNIQUE, RANDOM, RESPAWN
 	}
 
-	public static class MessageContainter {
-		
-		private int to;
-		
-		private byte[] message;
-
-		private int delay;
-		
-		public MessageContainter(int to, byte[] message, int delay) {
-			super();
-			this.to = to;
-			this.message = message;
-			this.delay = delay;
-		}
-
-		public int getTo() {
-			return to;
-		}
-
-		public byte[] getMessage() {
-			return message;
-		}
-
-		public int decreaseDelay() {
-			return delay--;
-		}
-		
-	}
-	
 	private FlagMode flagMode;
 
 	private int spawnFrequency = 10;
@@ -90,7 +61,7 @@ public class Game {
 
 	private Field field;
 
-	private HashMap<String, Team> teams = new HashMap<String, Team>();
+	private LinkedHashMap<String, Team> teams = new LinkedHashMap<String, Team>();
 
 	private int maxAgentsPerTeam = 10;
 
@@ -102,10 +73,26 @@ public class Game {
 	
 	private Properties properties = null;
 
+	private Random random;
+
+	private long seed;
+
 	private File gameSource;
 
+	private ParallelStep parallel = null;
+
+	private StepBarrier barrier = null;
+
 	private Vector<GameListener> listeners = new Vector<GameListener>();
 
+	// listeners that run on their own threads, created with the first one
+	private volatile EventBus bus = null;
+
+	private Vector<StepListener> stepListeners = new Vector<StepListener>();
+
+	// collects the changes for the step listeners, created with the first one
+	private volatile StepDelta.Builder delta = null;
+
 	private static final Color[] colors = new Color[] { Color.red, Color.blue,
 			Color.green, Color.yellow, Color.pink, Color.orange, Color.black,
 			Color.white };
@@ -124,11 +111,11 @@ public class Game {
 		if (a1 == null || a2 == null)
 			return -1;
 
-		BodyPosition bp1 = field.getPosition(a1);
-		BodyPosition bp2 = field.getPosition(a2);
+		if (!field.contains(a1) || !field.contains(a2))
+			return -1;
 
-		return Math.max(Math.abs(bp1.getX() - bp2.getX()), Math.abs(bp1.getY()
-				- bp2.getY()));
+		return Math.max(Math.abs(field.getX(a1) - field.getX(a2)), Math.abs(field.getY(a1)
+				- field.getY(a2)));
 	}
 
 	private Game() throws IOException {
@@ -160,6 +147,21 @@ public class Game {
 
 		game.gameSource = f;
 
+		// every random choice of the simulation is derived from this seed, so
+		// a game with a fixed seed can be reproduced step for step
+		String seed = game.getProperty("gameplay.seed", null);
+
+		try {
+			game.seed = seed == null ? System.nanoTime() : Long.parseLong(seed.trim());
+		} catch (NumberFormatException e) {
+			game.seed = seed.hashCode();
+		}
+
+		game.random = new Random(game.seed);
+
+		if (seed != null)
+			Main.log("Using random seed: %d", game.seed);
+
 		game.flagMode = FlagMode.valueOf(game.properties.getProperty(
 				"gameplay.flags", "unique").toUpperCase());
 
@@ -203,6 +205,8 @@ public class Game {
 				game.teams.put(id, team);
 			}
 
+			game.teams.get(id).setRandom(new Random(game.random.nextLong()));
+
 			Main.log("Registered team: " + id);
 
 		}
@@ -243,9 +247,23 @@ public class Game {
 		
 		game.field = Field.loadFromFile(fldFile, game);
 
+		for (Team t : game.teams.values())
+			t.setGrid(new AgentGrid(game.field.getWidth(), game.field.getHeight(),
+					game.neighborhoodSize));
+
 		if (game.flagMode != FlagMode.UNIQUE) {
 			game.spawnNewFlags();
 		}
+
+		game.field.publish(game.step);
+
+		if (game.getProperty("server.batch", false)) {
+			game.barrier = new StepBarrier();
+		}
+
+		if (game.getProperty("server.parallel", false)) {
+			game.parallel = new ParallelStep(game.field, game.getProperty("server.parallel.threads", 0));
+		}
 		
 		return game;
 
@@ -268,25 +286,29 @@ public class Game {
 		step++;
 
 		fireStepEvent();
+
+		// apply the moves and messages received since the last step
+		applyCommands();
 		
 		// handle moves and collisions
-		for (Team t : teams.values()) {
-			for (Agent a : t.move(field)) {
-				
-				synchronized (listeners) {
-					for (GameListener l : listeners) {
-						try {
-							l.position(t, a.getId(), field.getPosition(a));
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
+		if (parallel != null) {
 
-					}
-				}
-				
+			List<Team> order = new Vector<Team>(teams.values());
+			List<List<Agent>> moved = parallel.move(order);
+
+			for (int i = 0; i < order.size(); i++) {
+				order.get(i).index(moved.get(i), field);
+				firePositionEvents(order.get(i), moved.get(i));
+			}
+
+		} else {
+
+			for (Team t : teams.values()) {
+				firePositionEvents(t, t.move(field));
+
+				t.dispatch();
 			}
-			
-			t.dispatch();
+
 		}
 
 		// spawn new agents
@@ -307,12 +329,33 @@ public class Game {
 
 		// remove dead agents
 		for (Team t : teams.values()) {
-			t.cleanup(field);
+			t.cleanup(field, died);
+
+			fireDeathEvents(t, died);
+
+			died.clear();
 		}
 
 		// check end conditions?
 		// TODO
 
+		field.publish(step);
+
+		if (bus != null)
+			bus.publish();
+
+		if (delta != null)
+			fireStepDelta();
+
+		if (barrier != null) {
+			int active = 0, generation = barrier.getGeneration() + 1;
+
+			for (Team t : teams.values())
+				active += t.countActive(generation);
+
+			barrier.begin(active);
+		}
+
 	}
 
 	private void spawnNewAgents() {
@@ -321,17 +364,22 @@ public class Game {
 
 			if (t.size() < maxAgentsPerTeam) {
 
-				BodyPosition pos = field.getPosition(t.getHeadquarters());
+				Headquarters hq = t.getHeadquarters();
 
-				if (pos == null)
+				if (!field.contains(hq))
 					continue;
 
-				Collection<Cell> cells = field.getNeighborhood(pos.getX(), pos
-						.getY());
+				int x = field.getX(hq), y = field.getY(hq);
+
+				// the cells left, right, above and below the headquarters
+				for (int n = 0; n < 4; n++) {
 
-				for (Cell c : cells) {
+					int cx = x + (n == 0 ? -1 : (n == 1 ? 1 : 0));
+					int cy = y + (n == 2 ? -1 : (n == 3 ? 1 : 0));
 
-					if (!c.isEmpty())
+					if (cx < 0 || cx >= field.getWidth() || cy < 0
+							|| cy >= field.getHeight()
+							|| field.getBody(cx, cy) != null)
 						continue;
 
 					Agent agt = t.newAgent();
@@ -339,7 +387,11 @@ public class Game {
 					if (agt == null)
 						break;
 
-					field.putBody(agt, new BodyPosition(c.getPosition(), 0, 0));
+					field.putBody(agt, cx, cy, 0, 0);
+
+					t.index(agt, field);
+
+					fireSpawnEvent(t, agt);
 
 					break;
 				}
@@ -350,6 +402,8 @@ public class Game {
 
 	}
 
+	private Vector<Cell> flagCells = new Vector<Cell>();
+
 	private void spawnNewFlags() {
 
 		int add = 0;
@@ -363,91 +417,53 @@ public class Game {
 		if (add == 0)
 			return;
 
-		List<Cell> freeCells = field.listEmptyFields(true);
-
-		if (freeCells.size() < add)
+		// the cells for all the flags are picked before any flag is placed,
+		// so either every team gets its flags or none does
+		if (!field.sampleSpawnableCells(random, add, flagCells))
 			return;
 
-		Vector<Flag> flags = new Vector<Flag>();
+		int next = 0;
 
 		for (Team t : teams.values()) {
 
 			int nf = Math.max(0, flagPoolCount - t.getActiveFlagsCount());
-			for (int i = 0; i < nf; i++)
-				flags.add(t.newFlag(getFlagWeight()));
-		}
+			for (int i = 0; i < nf; i++) {
 
-		Collections.shuffle(flags);
-		Collections.shuffle(freeCells);
+				Cell cell = flagCells.get(next++);
 
-		for (int i = 0; i < flags.size(); i++) {
-			field.putBody(flags.get(i), new BodyPosition(freeCells.get(i)
-					.getPosition(), 0, 0));
+				field.putBody(t.newFlag(getFlagWeight()), new BodyPosition(cell
+						.getPosition(), 0, 0));
+			}
 		}
 
+		flagCells.clear();
+
 	}
 
 	public Neighborhood scanNeighborhood(int size, Agent agent) {
 
 		Neighborhood n = new Neighborhood(size);
 
-		BodyPosition bp = field.getPosition(agent);
-
-		if (bp == null)
-			return null;
-
-		for (int j = -size; j <= size; j++) {
-			for (int i = -size; i <= size; i++) {
-
-				Cell c = field.getCell(bp.getX() + i, bp.getY() + j);
-
-				if (c == null) {
-					n.setCell(i, j, Neighborhood.WALL);
-					continue;
-				}
-
-				if (c.isEmpty()) {
-					n.setCell(i, j, Neighborhood.EMPTY);
-					continue;
-				}
-
-				if (c.getBody() instanceof Wall) {
-					n.setCell(i, j, Neighborhood.WALL);
-					continue;
-				}
-
-				if (c.getBody() instanceof TeamBody) {
-
-					Team t = ((TeamBody) c.getBody()).getTeam();
-
-					if (c.getBody() instanceof Headquarters) {
-						n
-								.setCell(
-										i,
-										j,
-										t == agent.getTeam() ? Neighborhood.HEADQUARTERS
-												: Neighborhood.OTHER_HEADQUARTERS);
-						continue;
-					}
-
-					if (c.getBody() instanceof Flag) {
-						n.setCell(i, j,
-								t == agent.getTeam() ? Neighborhood.FLAG
-										: Neighborhood.OTHER_FLAG);
-						continue;
-					}
+		return scanNeighborhood(agent, n) < 0 ? null : n;
 
-					if (c.getBody() instanceof Agent) {
+	}
 
-						n.setCell(i, j, t == agent.getTeam() ? ((Agent) c
-								.getBody()).getId() : Neighborhood.OTHER);
-						continue;
-					}
-				}
-			}
-		}
+	/**
+	 * Scans the neighborhood of an agent into an existing neighborhood object,
+	 * its size determines the size of the scan. The scan reads the state of
+	 * the field at the end of the last step, it does not lock the game and can
+	 * be called from any thread.
+	 * 
+	 * @param agent
+	 *            the agent
+	 * @param n
+	 *            the neighborhood to fill
+	 * @return the step of the scanned state or -1 if the agent was not on the
+	 *         field
+	 */
+	public int scanNeighborhood(Agent agent, Neighborhood n) {
 
-		return n;
+		return field.scan(agent, n.getSize(), agent.getTeam(), n.getGrid());
 
 	}
 
@@ -463,11 +479,10 @@ public class Game {
 
 	public boolean getProperty(String key, boolean def) {
 
-		try {
-			return Boolean.parseBoolean(properties.getProperty(key));
-		} catch (Exception e) {
+		if (properties.getProperty(key) == null)
 			return def;
-		}
+
+		return Boolean.parseBoolean(properties.getProperty(key));
 
 	}
 	
@@ -499,6 +514,22 @@ public class Game {
 		return title;
 	}
 
+	/**
+	 * Returns the barrier that collects the acknowledgments of the clients in
+	 * batch mode or <code>null</code> if the game runs at a fixed speed.
+	 */
+	public StepBarrier getBarrier() {
+		return barrier;
+	}
+
+	public Random getRandom() {
+		return random;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
 	public int getStep() {
 		return step;
 	}
@@ -510,15 +541,63 @@ public class Game {
 
 	}
 
+	/**
+	 * Adds a listener that gets all the changes of a step in one call at the
+	 * end of the step.
+	 */
+	public void addStepListener(StepListener listener) {
+		synchronized (stepListeners) {
+			if (delta == null)
+				delta = new StepDelta.Builder(getTeams());
+			stepListeners.add(listener);
+		}
+	}
+
+	public void removeStepListener(StepListener listener) {
+		synchronized (stepListeners) {
+			stepListeners.remove(listener);
+		}
+	}
+
+	/**
+	 * Adds a listener that is called on its own thread instead of the
+	 * simulation thread. The events of a step are handed to the listener at
+	 * the end of the step, see {@link EventBus}.
+	 * 
+	 * @param listener
+	 *            the listener
+	 * @param policy
+	 *            what to do when the listener falls behind by more than
+	 *            <tt>server.listeners.buffer</tt> steps
+	 */
+	public void addListener(GameListener listener, OverflowPolicy policy) {
+
+		synchronized (listeners) {
+			if (bus == null) {
+				bus = new EventBus(getProperty("server.listeners.buffer", 64));
+				listeners.add(bus);
+			}
+		}
+
+		bus.subscribe(listener, policy);
+
+	}
+
 	public void removeListener(GameListener listener) {
 		synchronized (listeners) {
 			listeners.remove(listener);
 		}
+
+		if (bus != null)
+			bus.unsubscribe(listener);
 	}
 
-	public synchronized void message(Team team, int from, int to, byte[] message) {
-		Client cltto = team.findById(to);
-		Client cltfrom = team.findById(from);
+	/**
+	 * Queues a message from an agent to another agent of the same team. The
+	 * message is checked and handed to the sender at the beginning of the next
+	 * step, the call does not wait for the simulation.
+	 */
+	public void message(Team team, int from, int to, byte[] message) {
 
 		if (from == to) {
 			Main.log("Message from %d to %d rejected: same agent",
@@ -526,23 +605,104 @@ public class Game {
 			return;
 		}
 
-		if (cltto != null && cltfrom != null) {
+		Client cltfrom = team.findById(from);
+
+		if (cltfrom == null || cltfrom.getAgent() == null)
+			return;
+
+		if (!cltfrom.getAgent().post(new SendMessage(to, message)))
+			Main.log("Message from %d to %d rejected: outbox full", from, to);
+
+	}
+
+	/**
+	 * Queues a message from an agent to all the agents of its team within its
+	 * neighborhood. The recipients are determined at the beginning of the next
+	 * step.
+	 */
+	public void broadcast(Team team, int from, byte[] message) {
+
+		Client cltfrom = team.findById(from);
+
+		if (cltfrom == null || cltfrom.getAgent() == null)
+			return;
+
+		if (!cltfrom.getAgent().post(new BroadcastMessage(message)))
+			Main.log("Broadcast from %d rejected: outbox full", from);
+
+	}
+
+	public void move(Team team, int agent, Direction direction) {
+
+		Client clt = team.findById(agent);
+
+		if (clt != null && clt.getAgent() != null) {
+			clt.getAgent().request(direction);
+		}
+
+	}
+
+	private Vector<Agent> commanded = new Vector<Agent>();
+
+	/**
+	 * Applies the commands the clients sent since the last step. Teams are
+	 * handled in the order of registration and agents in the order of
+	 * movement, so the outcome does not depend on the timing of the input
+	 * threads.
+	 */
+	private void applyCommands() {
+
+		for (Team t : teams.values()) {
+
+			for (Agent a : t.getAgents(commanded)) {
+
+				a.applyRequest();
+
+				Message m;
+
+				while ((m = a.pollOutgoing()) != null) {
+
+					if (m instanceof SendMessage)
+						send(t, a, ((SendMessage) m).getTo(), ((SendMessage) m)
+								.getMessage());
+					else if (m instanceof BroadcastMessage)
+						broadcast(t, a, ((BroadcastMessage) m).getMessage());
+
+				}
 
-			int dst = distance(cltfrom.getAgent(), cltto.getAgent());
-			if (dst > neighborhoodSize || dst < 0) {
-				Main.log(
-						"Message from %d to %d rejected: too far away", from,
-						to);
-				return;
 			}
 
-			cltfrom.getAgent().pushMessage(to, message, message.length / messageSpeed);
+		}
+
+		commanded.clear();
+
+	}
+
+	private void send(Team team, Agent sender, int to, byte[] message) {
 
-		} else
+		int from = sender.getId();
+
+		Client cltto = team.findById(to);
+
+		if (cltto == null)
+			return;
+
+		int dst = distance(sender, cltto.getAgent());
+		if (dst > neighborhoodSize || dst < 0) {
+			Main.log(
+					"Message from %d to %d rejected: too far away", from,
+					to);
 			return;
+		}
+
+		team.schedule(sender, to, message, message.length / messageSpeed);
+
+		if (delta != null)
+			delta.message(team, message.length);
 
 		synchronized (listeners) {
-			for (GameListener l : listeners) {
+			for (int i = 0; i < listeners.size(); i++) {
+				GameListener l = listeners.get(i);
 				try {
 					l.message(team, from, to, message.length);
 				} catch (Exception e) {
@@ -553,10 +713,165 @@ public class Game {
 		}
 	}
 
+	private Vector<Agent> nearby = new Vector<Agent>();
+
+	/**
+	 * Sends a message from an agent to all the agents of its team within its
+	 * neighborhood. The recipients are found with the spatial index of the
+	 * team.
+	 */
+	private void broadcast(Team team, Agent sender, byte[] message) {
+
+		int from = sender.getId();
+
+		int x = field.getX(sender), y = field.getY(sender);
+
+		if (x < 0 || y < 0)
+			return;
+
+		nearby.clear();
+
+		team.findNear(field, x, y, neighborhoodSize, nearby);
+
+		for (Agent a : nearby) {
+
+			if (a == sender)
+				continue;
+
+			team.schedule(sender, a.getId(), message, message.length / messageSpeed);
+
+			if (delta != null)
+				delta.message(team, message.length);
+
+			synchronized (listeners) {
+				for (int i = 0; i < listeners.size(); i++) {
+					GameListener l = listeners.get(i);
+					try {
+						l.message(team, from, a.getId(), message.length);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+
+				}
+			}
+		}
+
+		nearby.clear();
+
+	}
+
+	// position handed to the listeners, see GameListener#position
+	private BodyPosition reported = new BodyPosition(0, 0);
+
+	private void firePositionEvents(Team team, List<Agent> moved) {
+
+		StepDelta.Builder delta = this.delta;
+
+		if (listeners.isEmpty() && delta == null)
+			return;
+
+		for (int j = 0; j < moved.size(); j++) {
+
+			Agent a = moved.get(j);
+
+			BodyPosition p = field.getPosition(a, reported) ? reported : null;
+
+			if (delta != null) {
+				delta.position(team, a.getId(), p);
+
+				if (a.hasPickedUp())
+					delta.pickup(team, a.getId());
+			}
+
+			synchronized (listeners) {
+				for (int i = 0; i < listeners.size(); i++) {
+					GameListener l = listeners.get(i);
+					try {
+						l.position(team, a.getId(), p);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+
+				}
+			}
+
+		}
+
+	}
+
+	private void fireSpawnEvent(Team team, Agent agent) {
+
+		if ((listeners.isEmpty() && delta == null)
+				|| !field.getPosition(agent, reported))
+			return;
+
+		if (delta != null)
+			delta.spawn(team, agent.getId(), reported);
+
+		synchronized (listeners) {
+			for (int i = 0; i < listeners.size(); i++) {
+				GameListener l = listeners.get(i);
+				try {
+					l.spawn(team, agent.getId(), reported);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+
+			}
+		}
+
+	}
+
+	private Vector<Agent> died = new Vector<Agent>();
+
+	private void fireDeathEvents(Team team, List<Agent> died) {
+
+		for (int j = 0; j < died.size(); j++) {
+
+			Agent a = died.get(j);
+
+			if (delta != null)
+				delta.death(team, a.getId());
+
+			synchronized (listeners) {
+				for (int i = 0; i < listeners.size(); i++) {
+					GameListener l = listeners.get(i);
+					try {
+						l.death(team, a.getId());
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+
+				}
+			}
+
+		}
+
+	}
+
+	private void fireStepDelta() {
+
+		StepDelta changes = delta.build(step);
+
+		synchronized (stepListeners) {
+			for (int i = 0; i < stepListeners.size(); i++) {
+				StepListener l = stepListeners.get(i);
+				try {
+					l.step(changes);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+
+			}
+		}
+
+	}
+
 	private void fireStepEvent() {
 		
 		synchronized (listeners) {
-			for (GameListener l : listeners) {
+			for (int i = 0; i < listeners.size(); i++) {
+				GameListener l = listeners.get(i);
 				try {
 					l.step();
 				} catch (Exception e) {
@@ -568,14 +883,30 @@ public class Game {
 		
 	}
 	
-	public synchronized void move(Team team, int agent, Direction direction) {
+	/**
+	 * @return the number of messages delivered in the last step
+	 */
+	public int getDeliveredMessages() {
 
-		Client clt = team.findById(agent);
+		int delivered = 0;
 
-		if (clt != null && clt.getAgent() != null) {
-			clt.getAgent().setDirection(direction);
-		}
+		for (Team t : teams.values())
+			delivered += t.getDeliveredMessages();
+
+		return delivered;
+	}
+
+	/**
+	 * @return the total size of the messages in transit in bytes
+	 */
+	public long getQueuedMessageBytes() {
+
+		long queued = 0;
+
+		for (Team t : teams.values())
+			queued += t.getQueuedMessageBytes();
 
+		return queued;
 	}
 
 	public int getSpeed() {
@@ -23,8 +23,24 @@ public interface GameListener {
 
 	public void message(Team team, int from, int to, int length);
 	
+	/**
+	 * Called for every agent that has moved in a step. The position object is
+	 * reused for all events and is only valid during the call, listeners that
+	 * keep it have to make a copy.
+	 */
 	public void position(Team team, int id, BodyPosition p);
 	
+	/**
+	 * Called when a new agent is placed on the field. The position object is
+	 * only valid during the call.
+	 */
+	public void spawn(Team team, int id, BodyPosition p);
+	
+	/**
+	 * Called when a dead agent is removed from the field.
+	 */
+	public void death(Team team, int id);
+	
 	public void step();
 	
 }
@@ -0,0 +1,137 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+/**
+ * A histogram of non-negative long values (e.g. durations in nanoseconds)
+ * with logarithmic buckets. Every power of two is split into 16 linear
+ * buckets, so percentiles are reported with a relative error of at most
+ * 1/16. Recording a value does not allocate.
+ */
+public class Histogram {
+
+	private static final int SUB_BITS = 4;
+
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	private long[] buckets = new long[64 * SUB_COUNT];
+
+	private long count = 0;
+
+	private long max = 0;
+
+	private long total = 0;
+
+	public synchronized void record(long value) {
+
+		if (value < 0)
+			value = 0;
+
+		buckets[index(value)]++;
+
+		count++;
+		total += value;
+
+		if (value > max)
+			max = value;
+
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	public synchronized long getMean() {
+		return count == 0 ? 0 : total / count;
+	}
+
+	/**
+	 * Returns the value below which the given fraction of the recorded values
+	 * lies.
+	 * 
+	 * @param fraction
+	 *            the fraction between 0 and 1, e.g. 0.99 for the 99th
+	 *            percentile
+	 * @return the upper bound of the bucket that contains the percentile
+	 */
+	public synchronized long getPercentile(double fraction) {
+
+		if (count == 0)
+			return 0;
+
+		long target = Math.max(1, (long) Math.ceil(fraction * count));
+
+		long seen = 0;
+
+		for (int i = 0; i < buckets.length; i++) {
+
+			seen += buckets[i];
+
+			if (seen >= target)
+				return Math.min(max, lowerBound(i + 1) - 1);
+
+		}
+
+		return max;
+	}
+
+	public synchronized void reset() {
+
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = 0;
+
+		count = 0;
+		max = 0;
+		total = 0;
+
+	}
+
+	private static int index(long value) {
+
+		if (value < SUB_COUNT)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+
+		int sub = (int) (value >>> (exponent - SUB_BITS)) - SUB_COUNT;
+
+		return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+
+	}
+
+	private static long lowerBound(int index) {
+
+		if (index < SUB_COUNT)
+			return index;
+
+		int exponent = index / SUB_COUNT + SUB_BITS - 1;
+
+		int sub = index % SUB_COUNT;
+
+		if (exponent >= 63)
+			return Long.MAX_VALUE;
+
+		return (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+
+	}
+
+}
@@ -19,12 +19,22 @@ package org.grid.server;
 
 import java.awt.Color;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Vector;
 
 import org.grid.server.Field.BodyPosition;
 
 
+/**
+ * Records the positions of all agents. The history may be written by its own
+ * thread (see {@link EventBus}), so all access to the recorded positions has to hold the monitor of the
+ * history. Listeners that continue from the recorded state (e.g. a
+ * {@link VisitMap}) are attached to the history instead of the game, so they
+ * get exactly the events that follow the recorded ones.
+ */
 public class History implements Serializable, GameListener {
 
 	private static final long serialVersionUID = -3631531900582757001L;
@@ -46,11 +56,152 @@ public class History implements Serializable, GameListener {
 		
 	}
 	
+	/**
+	 * Keyframes of a single agent stored in columns of primitive arrays. Every
+	 * keyframe is stored as the difference to the previous one (step, x and y)
+	 * and the offsets quantized to a byte, which takes 10 bytes per keyframe.
+	 * The columns are allocated in chunks of fixed size, so a long history is
+	 * never copied when it grows.
+	 */
+	protected static class Track implements Serializable, Iterable<HistoryPosition> {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final int CHUNK_BITS = 8;
+
+		private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+		private static final float OFFSET_SCALE = 250;
+
+		private int[][] steps = new int[1][];
+
+		private short[][] xs = new short[1][];
+
+		private short[][] ys = new short[1][];
+
+		private byte[][] offsetsX = new byte[1][];
+
+		private byte[][] offsetsY = new byte[1][];
+
+		private int size = 0;
+
+		// the last keyframe, the reference for the next difference
+		private int lastStep, lastX, lastY;
+
+		public void add(BodyPosition p, int step) {
+
+			int chunk = size >> CHUNK_BITS;
+			int index = size & (CHUNK_SIZE - 1);
+
+			if (index == 0) {
+
+				if (chunk == steps.length) {
+					int length = steps.length * 2;
+					steps = Arrays.copyOf(steps, length);
+					xs = Arrays.copyOf(xs, length);
+					ys = Arrays.copyOf(ys, length);
+					offsetsX = Arrays.copyOf(offsetsX, length);
+					offsetsY = Arrays.copyOf(offsetsY, length);
+				}
+
+				steps[chunk] = new int[CHUNK_SIZE];
+				xs[chunk] = new short[CHUNK_SIZE];
+				ys[chunk] = new short[CHUNK_SIZE];
+				offsetsX[chunk] = new byte[CHUNK_SIZE];
+				offsetsY[chunk] = new byte[CHUNK_SIZE];
+			}
+
+			steps[chunk][index] = step - lastStep;
+			xs[chunk][index] = (short) (p.getX() - lastX);
+			ys[chunk][index] = (short) (p.getY() - lastY);
+			offsetsX[chunk][index] = (byte) Math.round(p.getOffsetX() * OFFSET_SCALE);
+			offsetsY[chunk][index] = (byte) Math.round(p.getOffsetY() * OFFSET_SCALE);
+
+			lastStep = step;
+			lastX = p.getX();
+			lastY = p.getY();
+
+			size++;
+
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public boolean isEmpty() {
+			return size == 0;
+		}
+
+		/**
+		 * Checks if the last keyframe is in the same cell as the given
+		 * position.
+		 */
+		public boolean isLast(BodyPosition p) {
+			return size > 0 && lastX == p.getX() && lastY == p.getY();
+		}
+
+		/**
+		 * Returns an iterator that decodes the keyframes in order. The
+		 * iterator returns the same position object on every call.
+		 */
+		@Override
+		public Iterator<HistoryPosition> iterator() {
+
+			return new Iterator<HistoryPosition>() {
+
+				private int next = 0;
+
+				private int step = 0, x = 0, y = 0;
+
+				private HistoryPosition position = new HistoryPosition(new BodyPosition(0, 0), 0);
+
+				// the number of keyframes when the iteration started
+				private int end = size;
+
+				@Override
+				public boolean hasNext() {
+					return next < end;
+				}
+
+				@Override
+				public HistoryPosition next() {
+
+					if (next >= end)
+						throw new NoSuchElementException();
+
+					int chunk = next >> CHUNK_BITS;
+					int index = next & (CHUNK_SIZE - 1);
+
+					step += steps[chunk][index];
+					x += xs[chunk][index];
+					y += ys[chunk][index];
+
+					position.set(x, y, offsetsX[chunk][index] / OFFSET_SCALE,
+							offsetsY[chunk][index] / OFFSET_SCALE);
+					position.step = step;
+
+					next++;
+
+					return position;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+
+			};
+
+		}
+
+	}
+	
 	protected class AgentHistory implements Serializable {
 
 		private static final long serialVersionUID = 1L;
 		
-		private Vector<HistoryPosition> history = new Vector<HistoryPosition>();
+		private Track history = new Track();
 		
 		private transient BodyPosition preprevious, previous;
 		
@@ -58,7 +209,8 @@ public class History implements Serializable, GameListener {
 			
 			if (p == null) {
 				
-				history.add(new HistoryPosition(previous, step-1));
+				if (previous != null)
+					history.add(previous, step-1);
 				
 				return;
 				
@@ -68,7 +220,7 @@ public class History implements Serializable, GameListener {
 				
 				previous = new BodyPosition(p);
 				
-				history.add(new HistoryPosition(p, step));
+				history.add(p, step);
 				
 				return;
 			}
@@ -91,22 +243,25 @@ public class History implements Serializable, GameListener {
 			if (Math.abs(pX - (float)previous.getX() - previous.getOffsetX()) > 0.00001f ||
 				Math.abs(pY - (float)previous.getY() - previous.getOffsetY()) > 0.00001f) {
 			
-				history.add(new HistoryPosition(previous, step-1));
+				history.add(previous, step-1);
 				
 			} else {
 				
 				if (!p.hasOffset() && !history.isEmpty()) {
 					
-					if (!history.lastElement().equals(p))
-						history.add(new HistoryPosition(p, step));
+					if (!history.isLast(p))
+						history.add(p, step);
 					
 				}
 				
 			}
 			
+			// the two previous positions are reused, the listener gets a
+			// position object that is only valid during the call
+			BodyPosition swap = preprevious;
 			preprevious = previous;
-			previous = new BodyPosition(p);
-			
+			previous = swap;
+			previous.set(p.getX(), p.getY(), p.getOffsetX(), p.getOffsetY());
 			
 		}
 		
@@ -159,11 +314,42 @@ public class History implements Serializable, GameListener {
 	
 	private transient int step = 0;
 	
-	public void step() {
+	private transient Vector<GameListener> listeners = null;
+	
+	/**
+	 * Adds a listener that gets the events after they have been recorded. The
+	 * listener is called with the monitor of the history held.
+	 */
+	public synchronized void addListener(GameListener listener) {
+		
+		if (listeners == null)
+			listeners = new Vector<GameListener>();
+		
+		listeners.add(listener);
+	}
+	
+	public synchronized void removeListener(GameListener listener) {
+		
+		if (listeners != null)
+			listeners.remove(listener);
+	}
+	
+	public synchronized void step() {
 		step++;
+		
+		if (listeners == null)
+			return;
+		
+		for (int i = 0; i < listeners.size(); i++) {
+			try {
+				listeners.get(i).step();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
 	}
 	
-	public int calculateSize() {
+	public synchronized int calculateSize() {
 		
 		int size = 0;
 		
@@ -179,7 +365,12 @@ public class History implements Serializable, GameListener {
 		
 	}
 	
-	public Iterable<HistoryPosition> getAgentHistory(Team team, int id) {
+	/**
+	 * Returns the keyframes of an agent. The positions are decoded while
+	 * iterating and the same object is returned for every keyframe. The
+	 * keyframes have to be iterated with the monitor of the history held.
+	 */
+	public synchronized Iterable<HistoryPosition> getAgentHistory(Team team, int id) {
 		
 		TeamHistory th = teams.get(team.getName());
 		
@@ -196,12 +387,52 @@ public class History implements Serializable, GameListener {
 	}
 
 	@Override
-	public void message(Team team, int from, int to, int length) {
+	public synchronized void message(Team team, int from, int to, int length) {
+
+		if (listeners == null)
+			return;
+		
+		for (int i = 0; i < listeners.size(); i++) {
+			try {
+				listeners.get(i).message(team, from, to, length);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void spawn(Team team, int id, BodyPosition p) {
+
+		if (listeners == null)
+			return;
+		
+		for (int i = 0; i < listeners.size(); i++) {
+			try {
+				listeners.get(i).spawn(team, id, p);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void death(Team team, int id) {
 
+		if (listeners == null)
+			return;
+		
+		for (int i = 0; i < listeners.size(); i++) {
+			try {
+				listeners.get(i).death(team, id);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
 	}
 
 	@Override
-	public void position(Team team, int id, BodyPosition p) {
+	public synchronized void position(Team team, int id, BodyPosition p) {
 		TeamHistory h = teams.get(team.getName());
 		
 		if (h == null) {
@@ -210,5 +441,16 @@ public class History implements Serializable, GameListener {
 		}
 		
 		h.record(id, p);
+		
+		if (listeners == null)
+			return;
+		
+		for (int i = 0; i < listeners.size(); i++) {
+			try {
+				listeners.get(i).position(team, id, p);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
 	}
 }
@@ -48,6 +48,7 @@ import javax.swing.JSplitPane;
 
 import org.grid.arena.Arena;
 import org.grid.arena.SwingView;
+import org.grid.protocol.ProtocolSocket.OverflowPolicy;
 import org.grid.server.ClientsPanel.SelectionObserver;
 import org.grid.server.Dispatcher.Client;
 import org.grid.server.Field.Body;
@@ -63,25 +64,19 @@ public class Main {
 
 	private static Game game;
 
-	private static long renderTime = 0;
-
-	private static int renderCount = 0;
-
-	private static long stepTime = 0;
-
-	private static int stepCount = 0;
-
-	private static Object mutex = new Object();
-
 	private static History history = new History();
 
 	private static boolean running = false;
 
-	private static GameSwingView view = new GameSwingView();
+	private static boolean headless = Boolean.getBoolean("org.grid.server.headless");
+
+	private static GameSwingView view = null;
 
 	private static ClientsPanel clientsPanel = null;
+
+	private static boolean asyncListeners = false;
 	
-	private static JLabel gameStepDisplay = new JLabel();
+	private static JLabel gameStepDisplay = null;
 	
 	private static PrintWriter log;
 	
@@ -92,20 +87,7 @@ public class Main {
 	
 	private static final int MAX_TEAMS_VERBOSE = 4;
 	
-	private static Action playpause = new AbstractAction("Play") {
-
-		private static final long serialVersionUID = 1L;
-
-		@Override
-		public void actionPerformed(ActionEvent arg0) {
-
-			running = !running;
-
-			setEnabled(false);
-			
-			//putValue(AbstractAction.NAME, running ? "Pause" : "Play");
-		}
-	};
+	private static Action playpause = null;
 
 	private static class GameSwingView extends SwingView implements
 			GameListener, SelectionObserver, MouseListener {
@@ -142,8 +124,6 @@ public class Main {
 		@Override
 		public void paint(Graphics g) {
 
-			long start = System.currentTimeMillis();
-
 			Arena view = getArena();
 
 			paintBackground(g, visualization == null ? view : visualization);
@@ -217,15 +197,6 @@ public class Main {
 				buffer = active;
 			}
 
-			long used = System.currentTimeMillis() - start;
-
-			synchronized (mutex) {
-
-				renderTime += used;
-				renderCount++;
-
-			}
-
 		}
 
 		@Override
@@ -249,7 +220,7 @@ public class Main {
 			synchronized (this) {
 				if (client == null) {
 					if (visualization != null)
-						game.removeListener(visualization);
+						history.removeListener(visualization);
 					visualization = null;
 					setBasePallette(null);
 					return;
@@ -260,10 +231,18 @@ public class Main {
 				if (a == null)
 					return;
 
-				visualization = new VisitMap(game.getField(), history, a, game
-						.getNeighborhoodSize());
+				if (visualization != null)
+					history.removeListener(visualization);
+
+				// the map continues from the recorded positions, the history
+				// may be written by its own thread meanwhile
+				synchronized (history) {
+					visualization = new VisitMap(game.getField(), history, a,
+							game.getNeighborhoodSize());
+					history.addListener(visualization);
+				}
+
 				setBasePallette((Palette) visualization);
-				game.addListener(visualization);
 			}
 
 		}
@@ -273,6 +252,16 @@ public class Main {
 
 		}
 
+		@Override
+		public void spawn(Team team, int id, BodyPosition p) {
+
+		}
+
+		@Override
+		public void death(Team team, int id) {
+
+		}
+
 		@Override
 		public void step() {
 
@@ -320,8 +309,26 @@ public class Main {
 
 	}
 
+	/**
+	 * Adds a listener of the user interface to the game, on its own thread if
+	 * <tt>server.listeners.async</tt> is enabled.
+	 */
+	private static void addListener(GameListener listener, OverflowPolicy policy) {
+
+		if (asyncListeners)
+			game.addListener(listener, policy);
+		else
+			game.addListener(listener);
+
+	}
+
 	public static void main(String[] args) throws IOException {
 		
+		if (headless) {
+			// make sure nothing accidentally initializes a display connection
+			System.setProperty("java.awt.headless", "true");
+		}
+		
 		info("Starting game server (release %s)", RELEASE);
 
 		if (args.length < 1) {
@@ -329,7 +336,8 @@ public class Main {
 			System.exit(1);
 		}
 
-		info("Java2D OpenGL acceleration "
+		if (!headless)
+			info("Java2D OpenGL acceleration "
 				+ (("true".equalsIgnoreCase(System
 						.getProperty("sun.java2d.opengl"))) ? "enabled"
 						: "not enabled"));
@@ -346,68 +354,107 @@ public class Main {
 
 		final int gameSpeed = game.getSpeed();
 
-		game.addListener(view);
+		if (headless) {
+			
+			// there is no play button, the game starts immediately
+			running = true;
+			
+		} else {
+			
+			view = new GameSwingView();
 
-		game.addListener(history);
+			asyncListeners = game.getProperty("server.listeners.async", true);
+
+			// the view only shows the latest state, the history has to see
+			// every step
+			addListener(view, "block".equalsIgnoreCase(game.getProperty(
+					"server.listeners.overflow", "drop")) ? OverflowPolicy.BLOCK
+					: OverflowPolicy.DROP);
+
+			addListener(history, OverflowPolicy.BLOCK);
+
+		}
+
+		String record = game.getProperty("server.record", null);
+
+		if (record != null) {
+
+			final Recorder recorder = new Recorder(game, new File(record), game
+					.getProperty("server.record.keyframes", 100));
+
+			game.addListener(recorder);
+
+			// write the last events when the server is closed
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					recorder.close();
+				}
+			});
+
+		}
 		
-		(new Thread(new Runnable() {
+		StepScheduler scheduler = new StepScheduler(new Runnable() {
 
 			@Override
 			public void run() {
-				int sleep = 1000 / gameSpeed;
-				long start, used;
-				while (true) {
-
-					start = System.currentTimeMillis();
 
-					if (running)
-						game.step();
+				if (running)
+					game.step();
 
+				if (view != null)
 					view.update(game.getField());
 
-					used = System.currentTimeMillis() - start;
+				if (gameStepDisplay != null && game.getStep() % 10 == 0) {
+					gameStepDisplay.setText(String.format("Step: %d", game.getStep()));
+				}
 
-					stepTime += used;
-					stepCount++;
+			}
+		}, gameSpeed);
 
-					if (game.getStep() % 100 == 0 && running) {
-						long renderFPS, stepFPS;
+		scheduler.setCatchUp("burst".equalsIgnoreCase(game.getProperty("server.catchup", "skip")) ?
+				StepScheduler.CatchUp.BURST : StepScheduler.CatchUp.SKIP, game.getProperty("server.catchup.limit", gameSpeed));
 
-						synchronized (mutex) {
-							renderFPS = (renderCount * 1000)
-									/ Math.max(1, renderTime);
-							renderCount = 0;
-							renderTime = 0;
-						}
+		if (game.getBarrier() != null) {
 
-						stepFPS = (stepCount * 1000) / Math.max(1, stepTime);
-						stepCount = 0;
-						stepTime = 0;
+			scheduler.setBatch(game.getBarrier(), game.getProperty("server.batch.timeout", 1000 / gameSpeed));
 
-						info(
-										"Game step: %d (step: %d fps, render: %d fps)",
-										game.getStep(), stepFPS, renderFPS);
-					}
+			log("Batch mode: steps are not throttled");
 
-					if (game.getStep() % 10 == 0) {
-						gameStepDisplay.setText(String.format("Step: %d", game.getStep()));
-					}
-					
-					try {
-						if (used < sleep)
-							Thread.sleep(sleep - used);
-						else {
-							info("Warning: low frame rate");
-						}
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
+		}
 
-				}
+		scheduler.setReportInterval(game.getProperty("server.statistics", game.getBarrier() != null ? 10 : 0));
 
-			}
-		})).start();
+		(new Thread(scheduler)).start();
+
+		if (!headless)
+			createWindow();
+
+		(new Thread(dispatcher)).start();
+		
+		log("Server ready%s.", headless ? " (headless)" : "");
+		
+	}
+	
+	private static void createWindow() {
+		
+		playpause = new AbstractAction("Play") {
+
+			private static final long serialVersionUID = 1L;
 
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+
+				running = !running;
+
+				setEnabled(false);
+				
+				//putValue(AbstractAction.NAME, running ? "Pause" : "Play");
+			}
+		};
+		
+		gameStepDisplay = new JLabel();
+		
 		JFrame window = new JFrame("AgentField - " + game.getTitle());
 
 		window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -483,10 +530,6 @@ public class Main {
 		window.setSize(ws);
 		
 		window.setVisible(true);
-
-		(new Thread(dispatcher)).start();
-		
-		log("Server ready.");
 		
 	}
 	
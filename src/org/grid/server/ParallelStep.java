@@ -0,0 +1,280 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.grid.server.Agent.Intent;
+import org.grid.server.Field.BodyPosition;
+
+/**
+ * Moves the agents of all teams using a pool of worker threads. The step is
+ * split into phases:
+ * 
+ * 1. plan: every team computes the next position of its agents (in parallel,
+ * agents only read their own state),
+ * 
+ * 2. commit within cells: agents that stay in their cell and whose cell is not
+ * entered by any other agent can not take part in a collision, their moves are
+ * applied in parallel,
+ * 
+ * 3. commit across cells: the remaining moves are applied sequentially in the
+ * same order as {@link Team#move(Field)} would apply them, so collisions,
+ * deaths and flag pickups are resolved exactly as in the sequential step. The
+ * delayed messages of a team are dispatched right after its moves, as in the
+ * sequential step.
+ * 
+ * Only a small fraction of the agents changes its cell in a step, so most of
+ * the work is done in parallel while the result stays deterministic.
+ * 
+ * The tasks and the lists of moved agents are reused in every step, the
+ * returned lists are only valid until the next step.
+ */
+class ParallelStep {
+
+	/**
+	 * The work of a single team in one of the parallel phases.
+	 */
+	private class TeamTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private Team team;
+
+		private List<Agent> agents;
+
+		private boolean planning;
+
+		private boolean[] result = new boolean[16];
+
+		private Vector<Agent> moved = new Vector<Agent>();
+
+		@Override
+		protected void compute() {
+
+			if (planning) {
+				agents = team.plan(field);
+				return;
+			}
+
+			int width = field.getWidth();
+
+			for (int j = 0; j < agents.size(); j++) {
+
+				Agent a = agents.get(j);
+
+				if (a.getIntent() != Intent.STAY)
+					continue;
+
+				BodyPosition p = a.getIntentPosition();
+
+				if (targets.get(p.getY() * width + p.getX()))
+					continue;
+
+				result[j] = a.commit(field);
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Runs the active team tasks in the pool.
+	 */
+	private class Phase extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute() {
+
+			invokeAll(active);
+
+		}
+
+	}
+
+	private ForkJoinPool pool;
+
+	private Field field;
+
+	private BitSet targets = new BitSet();
+
+	private Vector<TeamTask> tasks = new Vector<TeamTask>();
+
+	private Vector<TeamTask> active = new Vector<TeamTask>();
+
+	private Phase phase = new Phase();
+
+	private Vector<List<Agent>> planned = new Vector<List<Agent>>();
+
+	private Vector<List<Agent>> moved = new Vector<List<Agent>>();
+
+	public ParallelStep(Field field, int threads) {
+
+		this.field = field;
+		this.pool = threads > 0 ? new ForkJoinPool(threads) : new ForkJoinPool();
+
+	}
+
+	/**
+	 * Moves the agents of the given teams.
+	 * 
+	 * @param teams
+	 *            the teams in the order in which they would be moved
+	 *            sequentially
+	 * @return the agents that have moved, one list per team
+	 */
+	public List<List<Agent>> move(List<Team> teams) {
+
+		prepare(teams.size());
+
+		for (int i = 0; i < teams.size(); i++) {
+			TeamTask task = active.get(i);
+			task.team = teams.get(i);
+			task.planning = true;
+		}
+
+		run();
+
+		planned.clear();
+
+		for (int i = 0; i < teams.size(); i++)
+			planned.add(active.get(i).agents);
+
+		return commit(teams, planned);
+
+	}
+
+	/**
+	 * Commits the planned moves.
+	 * 
+	 * @param teams
+	 *            the teams whose messages are dispatched after their moves or
+	 *            <code>null</code> to only move the agents
+	 * @param planned
+	 *            the planned agents, one list per team, in the order of
+	 *            movement
+	 * @return the agents that have moved, one list per team
+	 */
+	List<List<Agent>> commit(List<Team> teams, List<List<Agent>> planned) {
+
+		prepare(planned.size());
+
+		int width = field.getWidth();
+
+		targets.clear();
+
+		for (int i = 0; i < planned.size(); i++) {
+
+			TeamTask task = active.get(i);
+
+			List<Agent> agents = planned.get(i);
+
+			task.agents = agents;
+			task.planning = false;
+
+			if (task.result.length < agents.size())
+				task.result = new boolean[Math.max(agents.size(), task.result.length * 2)];
+			else
+				Arrays.fill(task.result, 0, agents.size(), false);
+
+			for (int j = 0; j < agents.size(); j++) {
+
+				Agent a = agents.get(j);
+
+				if (a.getIntent() != Intent.CROSS)
+					continue;
+
+				BodyPosition p = a.getIntentPosition();
+
+				if (p.getX() >= 0 && p.getX() < width && p.getY() >= 0
+						&& p.getY() < field.getHeight())
+					targets.set(p.getY() * width + p.getX());
+
+			}
+
+		}
+
+		run();
+
+		moved.clear();
+
+		for (int i = 0; i < planned.size(); i++) {
+
+			TeamTask task = active.get(i);
+
+			List<Agent> agents = task.agents;
+			Vector<Agent> list = task.moved;
+
+			list.clear();
+
+			for (int j = 0; j < agents.size(); j++) {
+
+				Agent a = agents.get(j);
+
+				if (a.getIntent() != Intent.NONE)
+					task.result[j] = a.commit(field);
+
+				if (task.result[j])
+					list.add(a);
+			}
+
+			if (teams != null)
+				teams.get(i).dispatch();
+
+			moved.add(list);
+		}
+
+		return moved;
+
+	}
+
+	/**
+	 * Makes sure that there is one task per team.
+	 */
+	private void prepare(int count) {
+
+		while (tasks.size() < count)
+			tasks.add(new TeamTask());
+
+		if (active.size() != count) {
+			active.clear();
+			active.addAll(tasks.subList(0, count));
+		}
+
+	}
+
+	private void run() {
+
+		for (int i = 0; i < active.size(); i++)
+			active.get(i).reinitialize();
+
+		phase.reinitialize();
+
+		pool.invoke(phase);
+
+	}
+
+}
@@ -0,0 +1,567 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.grid.arena.Arena;
+import org.grid.server.Dispatcher.Client;
+import org.grid.server.Field.Body;
+import org.grid.server.Field.BodyPosition;
+import org.grid.server.Team.Flag;
+
+/**
+ * Streams the events of a game to an append-only binary log. The events are
+ * encoded by the simulation thread into large buffers that are written to the
+ * file by a separate thread, so recording never waits for the disk. If the
+ * writer falls behind and all buffers are full, events are dropped (and
+ * counted) instead of blocking the game, the next keyframe restores a
+ * consistent state. A buffer is handed to the writer when it is full or at
+ * least once per second, so a crash of the server loses at most about a second
+ * of the match.
+ * 
+ * The log starts with a header: the magic number, the version, the size of
+ * the field, the base and wall tile of every cell and the teams (name, color,
+ * position of the headquarters). It is followed by records that start with a
+ * one byte type:
+ * 
+ * STEP step, POSITION team id x y offsetX offsetY carrying, MESSAGE team from
+ * to length, SPAWN team id x y, DEATH team id, SCORE team score, FLAG team
+ * flag x y (-1 if the flag is no longer on the field) and KEYFRAME length
+ * followed by the complete state at the beginning of the step: the agents
+ * (team id x y offsetX offsetY carrying), the flags (team flag x y) and the
+ * score of every team.
+ * 
+ * Teams are identified by their index in the header, flags by a number
+ * assigned by the recorder. Integers are written in big-endian order, x and y
+ * as shorts.
+ */
+public class Recorder implements GameListener, TeamListener, Runnable {
+
+	public static final int MAGIC = 0x41464c47;
+
+	public static final int VERSION = 1;
+
+	public static final int STEP = 1;
+
+	public static final int POSITION = 2;
+
+	public static final int MESSAGE = 3;
+
+	public static final int SPAWN = 4;
+
+	public static final int DEATH = 5;
+
+	public static final int SCORE = 6;
+
+	public static final int FLAG = 7;
+
+	public static final int KEYFRAME = 8;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private static final int BUFFERS = 4;
+
+	private static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private static class FlagState {
+
+		private int id;
+
+		private int x = -1, y = -1;
+
+		private int seen;
+
+	}
+
+	private Game game;
+
+	private Field field;
+
+	private List<Team> teams;
+
+	private FileChannel channel;
+
+	private ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(BUFFERS);
+
+	private ArrayBlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<ByteBuffer>(BUFFERS + 1);
+
+	private ByteBuffer buffer;
+
+	private long handed;
+
+	private int keyframeInterval;
+
+	private long dropped = 0;
+
+	private boolean closed = false;
+
+	private boolean failed = false;
+
+	private Thread writer;
+
+	private IdentityHashMap<Flag, FlagState> flags = new IdentityHashMap<Flag, FlagState>();
+
+	private int flagCounter = 0;
+
+	private int recorded = 0;
+
+	private BodyPosition position = new BodyPosition(0, 0);
+
+	private Vector<Agent> agents = new Vector<Agent>();
+
+	private Vector<Agent> all = new Vector<Agent>();
+
+	/**
+	 * Creates a recorder and writes the header of the log. The recorder has
+	 * to be registered as a listener of the game by the caller, it registers
+	 * itself as a listener of the teams.
+	 * 
+	 * @param game
+	 *            the game
+	 * @param file
+	 *            the log file, it is overwritten
+	 * @param keyframeInterval
+	 *            the number of steps between two keyframes
+	 * @throws IOException
+	 */
+	public Recorder(Game game, File file, int keyframeInterval) throws IOException {
+
+		this.game = game;
+		this.field = game.getField();
+		this.teams = game.getTeams();
+		this.keyframeInterval = Math.max(1, keyframeInterval);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+
+		channel = raf.getChannel();
+
+		int width = field.getWidth(), height = field.getHeight();
+
+		// the header may be larger than a regular buffer
+		buffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, 1024 + 2 * width * height));
+
+		for (int i = 1; i < BUFFERS; i++)
+			free.add(ByteBuffer.allocate(BUFFER_SIZE));
+
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(width);
+		buffer.putInt(height);
+
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				buffer.put((byte) field.getBaseTile(x, y));
+
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+				Body b = field.getBody(x, y);
+				buffer.put((byte) (b instanceof Field.Wall ? b.getTile()
+						- Arena.TILE_WALL_0 + 1 : 0));
+			}
+
+		buffer.putInt(teams.size());
+
+		for (Team t : teams) {
+
+			byte[] name = t.getName().getBytes(UTF8);
+
+			buffer.putInt(name.length);
+			buffer.put(name);
+			buffer.putInt(t.getColor().getRGB());
+
+			Body hq = t.getHeadquarters();
+
+			buffer.putShort((short) (field.contains(hq) ? field.getX(hq) : -1));
+			buffer.putShort((short) (field.contains(hq) ? field.getY(hq) : -1));
+
+			t.addListener(this);
+		}
+
+		handed = System.nanoTime();
+
+		writer = new Thread(this, "Recorder");
+		writer.setDaemon(true);
+		writer.start();
+
+		Main.log("Recording game to %s", file);
+
+	}
+
+	@Override
+	public synchronized void step() {
+
+		if (closed)
+			return;
+
+		recordFlags();
+
+		int step = game.getStep();
+
+		if (reserve(5)) {
+			buffer.put((byte) STEP);
+			buffer.putInt(step);
+		}
+
+		if (step % keyframeInterval == 0)
+			recordKeyframe();
+
+		long now = System.nanoTime();
+
+		if (now - handed >= FLUSH_INTERVAL) {
+			handOver();
+			handed = now;
+		}
+
+	}
+
+	@Override
+	public synchronized void position(Team team, int id, BodyPosition p) {
+
+		if (closed || p == null || !reserve(19))
+			return;
+
+		Client client = team.findById(id);
+
+		buffer.put((byte) POSITION);
+		buffer.put((byte) teams.indexOf(team));
+		buffer.putInt(id);
+		buffer.putShort((short) p.getX());
+		buffer.putShort((short) p.getY());
+		buffer.putFloat(p.getOffsetX());
+		buffer.putFloat(p.getOffsetY());
+		buffer.put((byte) (client != null && client.getAgent() != null
+				&& client.getAgent().hasFlag() ? 1 : 0));
+
+	}
+
+	@Override
+	public synchronized void message(Team team, int from, int to, int length) {
+
+		if (closed || !reserve(14))
+			return;
+
+		buffer.put((byte) MESSAGE);
+		buffer.put((byte) teams.indexOf(team));
+		buffer.putInt(from);
+		buffer.putInt(to);
+		buffer.putInt(length);
+
+	}
+
+	@Override
+	public synchronized void spawn(Team team, int id, BodyPosition p) {
+
+		if (closed || !reserve(10))
+			return;
+
+		buffer.put((byte) SPAWN);
+		buffer.put((byte) teams.indexOf(team));
+		buffer.putInt(id);
+		buffer.putShort((short) p.getX());
+		buffer.putShort((short) p.getY());
+
+	}
+
+	@Override
+	public synchronized void death(Team team, int id) {
+
+		if (closed || !reserve(6))
+			return;
+
+		buffer.put((byte) DEATH);
+		buffer.put((byte) teams.indexOf(team));
+		buffer.putInt(id);
+
+	}
+
+	@Override
+	public synchronized void scoreChange(Team team, int score) {
+
+		if (closed || !reserve(6))
+			return;
+
+		buffer.put((byte) SCORE);
+		buffer.put((byte) teams.indexOf(team));
+		buffer.putInt(score);
+
+	}
+
+	@Override
+	public void clientConnect(Team team, Client client) {
+
+	}
+
+	@Override
+	public void clientDisconnect(Team team, Client client) {
+
+	}
+
+	/**
+	 * Writes the remaining events and closes the log. Waits for the writer
+	 * thread to finish.
+	 */
+	public void close() {
+
+		synchronized (this) {
+
+			if (closed)
+				return;
+
+			closed = true;
+
+			handOver();
+
+			full.add(END);
+
+		}
+
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Main.log("Unable to close recording: %s", e.toString());
+		}
+
+		Main.log("Recording closed, %d steps recorded, %d events dropped", game
+				.getStep(), dropped);
+
+	}
+
+	/**
+	 * Writes the full buffers to the file.
+	 */
+	@Override
+	public void run() {
+
+		while (true) {
+
+			ByteBuffer b;
+
+			try {
+				b = full.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			if (b == END)
+				return;
+
+			b.flip();
+
+			try {
+				if (!failed)
+					while (b.hasRemaining())
+						channel.write(b);
+			} catch (IOException e) {
+				failed = true;
+				Main.log("Recording failed: %s", e.toString());
+			}
+
+			// the larger header buffer is not reused
+			if (b.capacity() == BUFFER_SIZE) {
+				b.clear();
+				free.offer(b);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Makes room for a record in the current buffer.
+	 * 
+	 * @return <code>false</code> if there is no free buffer and the record has
+	 *         to be dropped
+	 */
+	private boolean reserve(int size) {
+
+		if (buffer != null && buffer.remaining() >= size)
+			return true;
+
+		handOver();
+
+		buffer = free.poll();
+
+		if (buffer == null || buffer.remaining() < size) {
+			dropped++;
+			return false;
+		}
+
+		return true;
+	}
+
+	private void handOver() {
+
+		if (buffer == null || buffer.position() == 0)
+			return;
+
+		full.add(buffer);
+
+		buffer = free.poll();
+
+	}
+
+	/**
+	 * Records the flags that have appeared, moved or disappeared since the
+	 * last step.
+	 */
+	private void recordFlags() {
+
+		recorded++;
+
+		for (Team t : teams) {
+
+			byte team = (byte) teams.indexOf(t);
+
+			for (Flag f : t.getFlags()) {
+
+				FlagState state = flags.get(f);
+
+				if (state == null) {
+					state = new FlagState();
+					state.id = flagCounter++;
+					flags.put(f, state);
+				}
+
+				state.seen = recorded;
+
+				int x = field.contains(f) ? field.getX(f) : -1;
+				int y = x < 0 ? -1 : field.getY(f);
+
+				if (x != state.x || y != state.y) {
+					state.x = x;
+					state.y = y;
+					writeFlag(team, state);
+				}
+
+			}
+
+		}
+
+		// flags that have been delivered to the headquarters
+		for (Iterator<Flag> i = flags.keySet().iterator(); i.hasNext();) {
+
+			Flag f = i.next();
+
+			FlagState state = flags.get(f);
+
+			if (state.seen == recorded)
+				continue;
+
+			if (state.x >= 0) {
+				state.x = -1;
+				state.y = -1;
+				writeFlag((byte) teams.indexOf(f.getTeam()), state);
+			}
+
+			i.remove();
+		}
+
+	}
+
+	private void writeFlag(byte team, FlagState state) {
+
+		if (!reserve(10))
+			return;
+
+		buffer.put((byte) FLAG);
+		buffer.put(team);
+		buffer.putInt(state.id);
+		buffer.putShort((short) state.x);
+		buffer.putShort((short) state.y);
+
+	}
+
+	private void recordKeyframe() {
+
+		all.clear();
+
+		for (Team t : teams)
+			all.addAll(t.getAgents(agents));
+
+		agents.clear();
+
+		int size = 4 + all.size() * 18 + 4 + flags.size() * 9 + teams.size() * 4;
+
+		if (!reserve(5 + size)) {
+			all.clear();
+			return;
+		}
+
+		buffer.put((byte) KEYFRAME);
+		buffer.putInt(size);
+
+		buffer.putInt(all.size());
+
+		for (int i = 0; i < all.size(); i++) {
+
+			Agent a = all.get(i);
+
+			if (!field.getPosition(a, position))
+				position.set(-1, -1, 0, 0);
+
+			buffer.put((byte) teams.indexOf(a.getTeam()));
+			buffer.putInt(a.getId());
+			buffer.putShort((short) position.getX());
+			buffer.putShort((short) position.getY());
+			buffer.putFloat(position.getOffsetX());
+			buffer.putFloat(position.getOffsetY());
+			buffer.put((byte) (a.hasFlag() ? 1 : 0));
+
+		}
+
+		all.clear();
+
+		buffer.putInt(flags.size());
+
+		for (Flag f : flags.keySet()) {
+			FlagState state = flags.get(f);
+			buffer.put((byte) teams.indexOf(f.getTeam()));
+			buffer.putInt(state.id);
+			buffer.putShort((short) state.x);
+			buffer.putShort((short) state.y);
+		}
+
+		for (Team t : teams)
+			buffer.putInt(t.getScore());
+
+	}
+
+}
@@ -0,0 +1,908 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Vector;
+
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSlider;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+import org.grid.arena.Arena;
+import org.grid.arena.SwingView;
+import org.grid.server.Field.BodyPosition;
+
+/**
+ * Plays back a game recorded by {@link Recorder}. The replay is an
+ * {@link Arena}, so it can be shown by the same views as a running game, and
+ * it drives registered {@link GameListener}s with the recorded step,
+ * position, message, spawn and death events.
+ * 
+ * When the log is opened it is scanned once to find the keyframes. Seeking
+ * starts at the closest keyframe before the target step and applies the
+ * events from there, so it only costs the events of at most one keyframe
+ * interval. Listeners are not notified about the events that are skipped by
+ * seeking.
+ * 
+ * The log may end with an incomplete record (e.g. if the server was killed),
+ * the replay ends with the last complete step.
+ */
+public class Replay implements Arena {
+
+	private static class AgentState {
+
+		private Team team;
+
+		private int id;
+
+		private int x = -1, y = -1;
+
+		private float offsetX, offsetY;
+
+		private boolean carrying;
+
+	}
+
+	private static class FlagState {
+
+		private Team team;
+
+		private int x = -1, y = -1;
+
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private FileChannel channel;
+
+	private DataInputStream in;
+
+	private int width, height;
+
+	private byte[] tiles;
+
+	private byte[] walls;
+
+	private Vector<Team> teams = new Vector<Team>();
+
+	private int[] scores;
+
+	private Team[] headquarters;
+
+	private AgentState[] cellAgents;
+
+	private FlagState[] cellFlags;
+
+	private Hashtable<Integer, AgentState> agents = new Hashtable<Integer, AgentState>();
+
+	private Hashtable<Integer, FlagState> flags = new Hashtable<Integer, FlagState>();
+
+	// offset of the first record after the header
+	private long start;
+
+	// keyframes: the step and the offset of the step record before them
+	private int[] keySteps = new int[16];
+
+	private long[] keyOffsets = new long[16];
+
+	private int keyCount = 0;
+
+	private int lastStep = 0;
+
+	private int step = 0;
+
+	private boolean silent = false;
+
+	private Vector<GameListener> listeners = new Vector<GameListener>();
+
+	private BodyPosition position = new BodyPosition(0, 0);
+
+	public Replay(File file) throws IOException {
+
+		channel = new RandomAccessFile(file, "r").getChannel();
+
+		DataInputStream scan = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16));
+
+		try {
+
+			if (scan.readInt() != Recorder.MAGIC)
+				throw new IOException("Not a game recording: " + file);
+
+			int version = scan.readInt();
+
+			if (version != Recorder.VERSION)
+				throw new IOException("Unsupported recording version: " + version);
+
+			width = scan.readInt();
+			height = scan.readInt();
+
+			tiles = new byte[width * height];
+			walls = new byte[width * height];
+
+			scan.readFully(tiles);
+			scan.readFully(walls);
+
+			headquarters = new Team[width * height];
+			cellAgents = new AgentState[width * height];
+			cellFlags = new FlagState[width * height];
+
+			int count = scan.readInt();
+
+			start = 4 * 5 + 2 * width * height;
+
+			for (int i = 0; i < count; i++) {
+
+				byte[] name = new byte[scan.readInt()];
+				scan.readFully(name);
+
+				Team team = new Team(new String(name, UTF8), new Color(scan.readInt()));
+
+				int x = scan.readShort(), y = scan.readShort();
+
+				if (contains(x, y))
+					headquarters[y * width + x] = team;
+
+				teams.add(team);
+
+				start += 4 + name.length + 4 + 4;
+			}
+
+			scores = new int[teams.size()];
+
+			index(scan);
+
+		} finally {
+			scan.close();
+		}
+
+		rewind();
+
+	}
+
+	/**
+	 * Scans the records to find the keyframes and the last complete step.
+	 */
+	private void index(DataInputStream scan) throws IOException {
+
+		byte[] skip = new byte[256];
+
+		long offset = start, stepOffset = -1;
+
+		int current = 0;
+
+		try {
+
+			while (true) {
+
+				int type = scan.readUnsignedByte();
+
+				int size = type == Recorder.KEYFRAME ? scan.readInt() : size(type);
+
+				if (size < 0)
+					break;
+
+				if (type == Recorder.STEP) {
+
+					// the previous step is complete once the next one starts
+					lastStep = current;
+					current = scan.readInt();
+					stepOffset = offset;
+
+				} else {
+
+					for (int remaining = size; remaining > 0; remaining -= skip.length)
+						scan.readFully(skip, 0, Math.min(remaining, skip.length));
+
+				}
+
+				if (type == Recorder.KEYFRAME) {
+
+					size += 4;
+
+					if (stepOffset >= 0) {
+
+						if (keyCount == keySteps.length) {
+							keySteps = Arrays.copyOf(keySteps, keyCount * 2);
+							keyOffsets = Arrays.copyOf(keyOffsets, keyCount * 2);
+						}
+
+						keySteps[keyCount] = current;
+						keyOffsets[keyCount] = stepOffset;
+						keyCount++;
+					}
+				}
+
+				offset += 1 + size;
+
+			}
+
+		} catch (EOFException e) {
+		}
+
+		// the last step is complete if the log ends after a whole record
+		if (offset == channel.size())
+			lastStep = current;
+
+	}
+
+	/**
+	 * @return the size of the payload of a record or -1 if the type is
+	 *         unknown
+	 */
+	private static int size(int type) {
+
+		switch (type) {
+		case Recorder.STEP:
+			return 4;
+		case Recorder.POSITION:
+			return 18;
+		case Recorder.MESSAGE:
+			return 13;
+		case Recorder.SPAWN:
+			return 9;
+		case Recorder.DEATH:
+			return 5;
+		case Recorder.SCORE:
+			return 5;
+		case Recorder.FLAG:
+			return 9;
+		case Recorder.KEYFRAME:
+			return 0;
+		default:
+			return -1;
+		}
+
+	}
+
+	public void addListener(GameListener listener) {
+		synchronized (listeners) {
+			listeners.add(listener);
+		}
+	}
+
+	public void removeListener(GameListener listener) {
+		synchronized (listeners) {
+			listeners.remove(listener);
+		}
+	}
+
+	public List<Team> getTeams() {
+		return teams;
+	}
+
+	public int getScore(Team team) {
+		int index = teams.indexOf(team);
+		return index < 0 ? 0 : scores[index];
+	}
+
+	/**
+	 * @return the current step, 0 before the first step
+	 */
+	public synchronized int getStep() {
+		return step;
+	}
+
+	/**
+	 * @return the last complete step of the recording
+	 */
+	public int getLastStep() {
+		return lastStep;
+	}
+
+	/**
+	 * Plays the next step.
+	 * 
+	 * @return <code>false</code> if the end of the recording has been reached
+	 * @throws IOException
+	 */
+	public synchronized boolean step() throws IOException {
+
+		if (step >= lastStep)
+			return false;
+
+		if (in.readUnsignedByte() != Recorder.STEP)
+			throw new IOException("Corrupted recording at step " + step);
+
+		step = in.readInt();
+
+		if (!silent)
+			fireStepEvent();
+
+		// the events of the step, up to the next step record
+		while (true) {
+
+			in.mark(1);
+
+			int type = in.read();
+
+			if (type < 0)
+				break;
+
+			if (type == Recorder.STEP) {
+				in.reset();
+				break;
+			}
+
+			apply(type);
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Moves to the given step, i.e. the state after all events of the step.
+	 * 
+	 * @param target
+	 *            the step
+	 * @throws IOException
+	 */
+	public synchronized void seek(int target) throws IOException {
+
+		target = Math.max(0, Math.min(lastStep, target));
+
+		// the last keyframe at or before the target
+		int key = Arrays.binarySearch(keySteps, 0, keyCount, target);
+
+		if (key < 0)
+			key = -key - 2;
+
+		silent = true;
+
+		try {
+
+			if (target < step || (key >= 0 && keySteps[key] > step)) {
+
+				if (key < 0) {
+					rewind();
+				} else {
+					open(keyOffsets[key]);
+					clear();
+					step = keySteps[key] - 1;
+				}
+
+			}
+
+			while (step < target && step())
+				;
+
+		} finally {
+			silent = false;
+		}
+
+	}
+
+	/**
+	 * Moves to the beginning of the recording, before the first step.
+	 */
+	public synchronized void rewind() throws IOException {
+
+		open(start);
+
+		clear();
+
+		Arrays.fill(scores, 0);
+
+		step = 0;
+
+		// the initial state is recorded before the first step
+		while (true) {
+
+			in.mark(1);
+
+			int type = in.read();
+
+			if (type < 0)
+				break;
+
+			if (type == Recorder.STEP) {
+				in.reset();
+				break;
+			}
+
+			apply(type);
+		}
+
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private void open(long offset) throws IOException {
+
+		channel.position(offset);
+
+		in = new DataInputStream(new BufferedInputStream(Channels
+				.newInputStream(channel), 1 << 16));
+
+	}
+
+	private void clear() {
+
+		agents.clear();
+		flags.clear();
+
+		Arrays.fill(cellAgents, null);
+		Arrays.fill(cellFlags, null);
+
+	}
+
+	private void apply(int type) throws IOException {
+
+		switch (type) {
+		case Recorder.POSITION: {
+
+			Team team = teams.get(in.readUnsignedByte());
+			int id = in.readInt();
+
+			AgentState agent = agent(team, id);
+
+			move(agent, in.readShort(), in.readShort(), in.readFloat(), in.readFloat());
+
+			agent.carrying = in.readByte() != 0;
+
+			if (!silent) {
+				position.set(agent.x, agent.y, agent.offsetX, agent.offsetY);
+				firePositionEvent(team, id, position);
+			}
+
+			break;
+		}
+		case Recorder.MESSAGE: {
+
+			Team team = teams.get(in.readUnsignedByte());
+			int from = in.readInt(), to = in.readInt(), length = in.readInt();
+
+			if (!silent)
+				fireMessageEvent(team, from, to, length);
+
+			break;
+		}
+		case Recorder.SPAWN: {
+
+			Team team = teams.get(in.readUnsignedByte());
+			int id = in.readInt();
+
+			AgentState agent = agent(team, id);
+
+			move(agent, in.readShort(), in.readShort(), 0, 0);
+
+			if (!silent) {
+				position.set(agent.x, agent.y, 0, 0);
+				fireSpawnEvent(team, id, position);
+			}
+
+			break;
+		}
+		case Recorder.DEATH: {
+
+			Team team = teams.get(in.readUnsignedByte());
+			int id = in.readInt();
+
+			AgentState agent = agents.remove(id);
+
+			if (agent != null)
+				move(agent, -1, -1, 0, 0);
+
+			if (!silent)
+				fireDeathEvent(team, id);
+
+			break;
+		}
+		case Recorder.SCORE: {
+
+			scores[in.readUnsignedByte()] = in.readInt();
+
+			break;
+		}
+		case Recorder.FLAG: {
+
+			Team team = teams.get(in.readUnsignedByte());
+			int id = in.readInt();
+
+			placeFlag(team, id, in.readShort(), in.readShort());
+
+			break;
+		}
+		case Recorder.KEYFRAME: {
+
+			in.readInt();
+
+			clear();
+
+			int count = in.readInt();
+
+			for (int i = 0; i < count; i++) {
+
+				Team team = teams.get(in.readUnsignedByte());
+
+				AgentState agent = agent(team, in.readInt());
+
+				move(agent, in.readShort(), in.readShort(), in.readFloat(), in.readFloat());
+
+				agent.carrying = in.readByte() != 0;
+			}
+
+			count = in.readInt();
+
+			for (int i = 0; i < count; i++) {
+
+				Team team = teams.get(in.readUnsignedByte());
+
+				placeFlag(team, in.readInt(), in.readShort(), in.readShort());
+			}
+
+			for (int i = 0; i < scores.length; i++)
+				scores[i] = in.readInt();
+
+			break;
+		}
+		default:
+			throw new IOException("Unknown record type " + type + " at step " + step);
+		}
+
+	}
+
+	private AgentState agent(Team team, int id) {
+
+		AgentState agent = agents.get(id);
+
+		if (agent == null) {
+			agent = new AgentState();
+			agent.team = team;
+			agent.id = id;
+			agents.put(id, agent);
+		}
+
+		return agent;
+	}
+
+	private void move(AgentState agent, int x, int y, float offsetX, float offsetY) {
+
+		if (contains(agent.x, agent.y) && cellAgents[agent.y * width + agent.x] == agent)
+			cellAgents[agent.y * width + agent.x] = null;
+
+		agent.x = x;
+		agent.y = y;
+		agent.offsetX = offsetX;
+		agent.offsetY = offsetY;
+
+		if (contains(x, y))
+			cellAgents[y * width + x] = agent;
+
+	}
+
+	private void placeFlag(Team team, int id, int x, int y) {
+
+		FlagState flag = flags.get(id);
+
+		if (flag == null) {
+			flag = new FlagState();
+			flag.team = team;
+			flags.put(id, flag);
+		}
+
+		if (contains(flag.x, flag.y) && cellFlags[flag.y * width + flag.x] == flag)
+			cellFlags[flag.y * width + flag.x] = null;
+
+		flag.x = x;
+		flag.y = y;
+
+		if (contains(x, y))
+			cellFlags[y * width + x] = flag;
+		else
+			flags.remove(id);
+
+	}
+
+	private boolean contains(int x, int y) {
+		return x >= 0 && x < width && y >= 0 && y < height;
+	}
+
+	private void fireStepEvent() {
+
+		synchronized (listeners) {
+			for (int i = 0; i < listeners.size(); i++) {
+				try {
+					listeners.get(i).step();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+	}
+
+	private void firePositionEvent(Team team, int id, BodyPosition p) {
+
+		synchronized (listeners) {
+			for (int i = 0; i < listeners.size(); i++) {
+				try {
+					listeners.get(i).position(team, id, p);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+	}
+
+	private void fireMessageEvent(Team team, int from, int to, int length) {
+
+		synchronized (listeners) {
+			for (int i = 0; i < listeners.size(); i++) {
+				try {
+					listeners.get(i).message(team, from, to, length);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+	}
+
+	private void fireSpawnEvent(Team team, int id, BodyPosition p) {
+
+		synchronized (listeners) {
+			for (int i = 0; i < listeners.size(); i++) {
+				try {
+					listeners.get(i).spawn(team, id, p);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+	}
+
+	private void fireDeathEvent(Team team, int id) {
+
+		synchronized (listeners) {
+			for (int i = 0; i < listeners.size(); i++) {
+				try {
+					listeners.get(i).death(team, id);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getBaseTile(int x, int y) {
+
+		if (!contains(x, y))
+			return 0;
+
+		return tiles[y * width + x];
+	}
+
+	@Override
+	public int getBodyTile(int x, int y) {
+
+		if (!contains(x, y))
+			return 0;
+
+		int index = y * width + x;
+
+		if (walls[index] != 0)
+			return Arena.TILE_WALL_0 + walls[index] - 1;
+
+		AgentState agent = cellAgents[index];
+
+		if (agent != null)
+			return agent.carrying ? Arena.TILE_AGENT_FLAG : Arena.TILE_AGENT;
+
+		if (headquarters[index] != null)
+			return Arena.TILE_HEADQUARTERS;
+
+		if (cellFlags[index] != null)
+			return Arena.TILE_FLAG;
+
+		return 0;
+	}
+
+	@Override
+	public float getBodyOffsetX(int x, int y) {
+
+		AgentState agent = contains(x, y) ? cellAgents[y * width + x] : null;
+
+		return agent == null ? 0 : agent.offsetX;
+	}
+
+	@Override
+	public float getBodyOffsetY(int x, int y) {
+
+		AgentState agent = contains(x, y) ? cellAgents[y * width + x] : null;
+
+		return agent == null ? 0 : agent.offsetY;
+	}
+
+	@Override
+	public Color getBodyColor(int x, int y) {
+
+		if (!contains(x, y))
+			return null;
+
+		int index = y * width + x;
+
+		AgentState agent = cellAgents[index];
+
+		if (agent != null)
+			return agent.team.getColor();
+
+		if (headquarters[index] != null)
+			return headquarters[index].getColor();
+
+		FlagState flag = cellFlags[index];
+
+		return flag == null ? null : flag.team.getColor();
+	}
+
+	/**
+	 * Shows a recording in a window.
+	 * 
+	 * Usage: Replay log [steps per second] [agent id] [neighborhood size]
+	 * 
+	 * With an agent id the background shows the cells visited by the agent
+	 * (see {@link VisitMap}) since the start of the playback.
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 1) {
+			Main.log("Usage: Replay log [steps per second] [agent id] [neighborhood size]");
+			System.exit(1);
+		}
+
+		final Replay replay = new Replay(new File(args[0]));
+
+		int speed = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		final SwingView view = new SwingView(12);
+
+		Arena shown = replay;
+
+		if (args.length > 2) {
+
+			VisitMap visits = new VisitMap(replay, Integer.parseInt(args[2]),
+					args.length > 3 ? Integer.parseInt(args[3]) : 5);
+
+			replay.addListener(visits);
+
+			view.setBasePallette(visits);
+
+			shown = visits;
+		}
+
+		final Arena arena = shown;
+
+		final JSlider slider = new JSlider(0, Math.max(1, replay.getLastStep()), 0);
+
+		final JLabel status = new JLabel();
+
+		slider.addChangeListener(new ChangeListener() {
+
+			@Override
+			public void stateChanged(ChangeEvent e) {
+
+				// only react to the user, the position is also updated by
+				// the playback
+				if (!slider.getValueIsAdjusting())
+					return;
+
+				try {
+					replay.seek(slider.getValue());
+				} catch (IOException ex) {
+					Main.log("Unable to seek: %s", ex.toString());
+				}
+
+				view.update(arena);
+			}
+		});
+
+		final Runnable progress = new Runnable() {
+
+			@Override
+			public void run() {
+
+				if (!slider.getValueIsAdjusting())
+					slider.setValue(replay.getStep());
+
+				StringBuilder text = new StringBuilder("Step: " + replay.getStep());
+
+				for (Team t : replay.getTeams())
+					text.append(String.format("  %s: %d", t.getName(), replay.getScore(t)));
+
+				status.setText(text.toString());
+			}
+		};
+
+		StepScheduler scheduler = new StepScheduler(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+					if (!slider.getValueIsAdjusting())
+						replay.step();
+				} catch (IOException e) {
+					Main.log("Unable to read recording: %s", e.toString());
+				}
+
+				view.update(arena);
+
+				SwingUtilities.invokeLater(progress);
+
+			}
+		}, speed);
+
+		JFrame window = new JFrame("AgentField replay - " + args[0]);
+
+		window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+
+		JPanel bottom = new JPanel(new BorderLayout());
+
+		bottom.add(status, BorderLayout.NORTH);
+		bottom.add(slider, BorderLayout.CENTER);
+
+		window.getContentPane().add(new JScrollPane(view), BorderLayout.CENTER);
+		window.getContentPane().add(bottom, BorderLayout.SOUTH);
+
+		view.update(arena);
+
+		window.pack();
+		window.setVisible(true);
+
+		(new Thread(scheduler)).start();
+
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Counts the clients that have acknowledged the current game step. It is used
+ * in batch mode where the next step starts as soon as every active client has
+ * sent a command after the previous one.
+ * 
+ * The generation (the step) and the number of missing acknowledgments are
+ * kept in a single atomic long, so an acknowledgment that arrives while a
+ * new step begins is never counted for the wrong step.
+ */
+public class StepBarrier {
+
+	private AtomicLong state = new AtomicLong(0);
+
+	private volatile Thread waiter = null;
+
+	private volatile int parties = 0;
+
+	/**
+	 * Starts a new generation.
+	 * 
+	 * @param parties
+	 *            the number of clients that have to acknowledge it
+	 */
+	public void begin(int parties) {
+
+		long generation = (state.get() >>> 32) + 1;
+
+		this.parties = Math.max(0, parties);
+
+		state.set((generation << 32) | Math.max(0, parties));
+
+	}
+
+	public int getGeneration() {
+		return (int) (state.get() >>> 32);
+	}
+
+	public int getParties() {
+		return parties;
+	}
+
+	public int getRemaining() {
+		return (int) state.get();
+	}
+
+	/**
+	 * Acknowledges the current generation.
+	 * 
+	 * @param last
+	 *            the last generation acknowledged by the caller
+	 * @return the generation that was acknowledged or <code>last</code> if
+	 *         the caller has already acknowledged the current generation
+	 */
+	public int arrive(int last) {
+
+		while (true) {
+
+			long s = state.get();
+
+			int generation = (int) (s >>> 32);
+
+			if (generation == last || (int) s == 0)
+				return last;
+
+			if (state.compareAndSet(s, s - 1)) {
+
+				if ((int) s == 1) {
+					Thread t = waiter;
+					if (t != null)
+						LockSupport.unpark(t);
+				}
+
+				return generation;
+			}
+
+		}
+
+	}
+
+	/**
+	 * Acknowledges a generation for a client that leaves the game, so the step
+	 * does not wait for it until the timeout. The client is removed from its
+	 * team first, so it is not counted for any later generation.
+	 * 
+	 * A client is counted just before its generation begins, so the call
+	 * waits for the generation to begin if it has not yet. A generation that
+	 * has already ended is not touched.
+	 * 
+	 * @param last
+	 *            the last generation acknowledged by the client
+	 * @param generation
+	 *            the last generation the client was counted for
+	 * @return the generation that was acknowledged or <code>last</code>
+	 */
+	public int leave(int last, int generation) {
+
+		if (generation == last)
+			return last;
+
+		while (true) {
+
+			long s = state.get();
+
+			int current = (int) (s >>> 32);
+
+			if (current < generation) {
+				Thread.yield();
+				continue;
+			}
+
+			if (current > generation || (int) s == 0)
+				return last;
+
+			if (state.compareAndSet(s, s - 1)) {
+
+				if ((int) s == 1) {
+					Thread t = waiter;
+					if (t != null)
+						LockSupport.unpark(t);
+				}
+
+				return generation;
+			}
+
+		}
+
+	}
+
+	/**
+	 * Waits until all clients have acknowledged the current generation.
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait in nanoseconds
+	 * @return <code>true</code> if all acknowledgments were received,
+	 *         <code>false</code> on timeout
+	 */
+	public boolean await(long timeout) {
+
+		long deadline = System.nanoTime() + timeout;
+
+		waiter = Thread.currentThread();
+
+		try {
+
+			while (getRemaining() > 0) {
+
+				long remaining = deadline - System.nanoTime();
+
+				if (remaining <= 0)
+					return false;
+
+				LockSupport.parkNanos(this, remaining);
+
+			}
+
+			return true;
+
+		} finally {
+			waiter = null;
+		}
+
+	}
+
+}
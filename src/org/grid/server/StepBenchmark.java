@@ -0,0 +1,213 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import org.grid.protocol.Message;
+import org.grid.protocol.Message.Direction;
+import org.grid.server.Dispatcher.Client;
+import org.grid.server.Field.BodyPosition;
+
+/**
+ * Measures the time and the memory allocated by {@link Game#step()} on a
+ * synthetic map. The agents are placed directly on the field and get a random
+ * move request before every step, no network connections are involved.
+ * 
+ * Usage: StepBenchmark [agents] [width] [height] [steps] [property=value ...]
+ * 
+ * Additional arguments are written to the game file, e.g.
+ * <code>server.parallel=true</code>. The allocated bytes are summed over all
+ * threads of the JVM and therefore also include the worker threads of the
+ * parallel step.
+ */
+public class StepBenchmark {
+
+	private static final int TEAMS = 4;
+
+	public static void main(String[] args) throws IOException {
+
+		int agents = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int width = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int height = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		int steps = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+
+		File directory = new File(System.getProperty("java.io.tmpdir"));
+
+		File map = File.createTempFile("benchmark", ".field", directory);
+		File description = File.createTempFile("benchmark", ".game", directory);
+
+		map.deleteOnExit();
+		description.deleteOnExit();
+
+		PrintWriter out = new PrintWriter(new FileWriter(map));
+
+		// walls around the map, the headquarters evenly spaced in the middle row
+		for (int j = 0; j < height; j++) {
+			char[] line = new char[width];
+			for (int i = 0; i < width; i++)
+				line[i] = (i == 0 || j == 0 || i == width - 1 || j == height - 1) ? '#' : ' ';
+			if (j == height / 2)
+				for (int t = 0; t < TEAMS; t++)
+					line[(2 * t + 1) * width / (2 * TEAMS)] = (char) ('A' + t);
+			out.println(line);
+		}
+
+		out.close();
+
+		out = new PrintWriter(new FileWriter(description));
+
+		out.println("gameplay.field=" + map.getAbsolutePath());
+		out.println("gameplay.seed=1");
+		out.println("gameplay.agents=" + (agents + TEAMS - 1) / TEAMS);
+		out.println("gameplay.flags=respawn");
+
+		for (int i = 0; i < TEAMS; i++)
+			out.println("team" + (i + 1) + "=team" + (i + 1));
+
+		for (int i = 4; i < args.length; i++)
+			out.println(args[i]);
+
+		out.close();
+
+		Game game = Game.loadFromFile(description);
+
+		Dispatcher dispatcher = new Dispatcher(0, game);
+
+		Field field = game.getField();
+
+		Random random = new Random(1);
+
+		Vector<Agent> all = new Vector<Agent>();
+
+		List<Team> teams = game.getTeams();
+
+		for (int i = 0; i < agents; i++) {
+
+			Team team = teams.get(i % teams.size());
+
+			Client client = dispatcher.new Client();
+
+			client.attach(new NullTransport());
+
+			team.addClient(client);
+
+			Agent agent = team.newAgent();
+
+			while (true) {
+
+				int x = 1 + random.nextInt(width - 2);
+				int y = 1 + random.nextInt(height - 2);
+
+				if (field.getBody(x, y) == null) {
+					field.putBody(agent, new BodyPosition(x, y));
+					team.index(agent, field);
+					break;
+				}
+			}
+
+			all.add(agent);
+		}
+
+		Direction[] directions = Direction.values();
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+
+		// the first half of the steps warms up the compiler
+		for (int round = 0; round < 2; round++) {
+
+			long allocated = allocated(threads);
+			long start = System.nanoTime();
+
+			for (int s = 0; s < steps / 2; s++) {
+
+				for (int i = 0; i < all.size(); i++)
+					all.get(i).request(directions[random.nextInt(directions.length)]);
+
+				game.step();
+			}
+
+			long time = System.nanoTime() - start;
+
+			allocated = allocated(threads) - allocated;
+
+			if (round == 1)
+				Main.log("%d agents on %dx%d: %.1f us per step, %d bytes allocated per step",
+						all.size(), width, height, time / 1000.0 / (steps / 2),
+						allocated / (steps / 2));
+		}
+
+		System.exit(0);
+
+	}
+
+	/**
+	 * Transport that discards all messages.
+	 */
+	private static class NullTransport implements Dispatcher.Transport {
+
+		public void sendMessage(Message message) {
+		}
+
+		public void close() {
+		}
+
+		public void switchInputCodec(int version) {
+		}
+
+		public void switchOutputCodec(int version) {
+		}
+
+		public InetAddress getRemoteAddress() {
+			return null;
+		}
+
+		public int getRemotePort() {
+			return -1;
+		}
+
+		public long getFlushCount() {
+			return 0;
+		}
+
+		public long getFlushedMessages() {
+			return 0;
+		}
+
+	}
+
+	private static long allocated(com.sun.management.ThreadMXBean threads) {
+
+		long total = 0;
+
+		for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+			total += Math.max(0, bytes);
+
+		return total;
+	}
+
+}
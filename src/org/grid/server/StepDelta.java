@@ -0,0 +1,373 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.grid.server.Field.BodyPosition;
+
+/**
+ * The changes of the game in one step: the agents that have moved, the new
+ * and the removed agents, the flags that were picked up, the scores of the
+ * teams and the number of messages sent by each team. The records are
+ * stored in primitive arrays and are accessed by index, teams are referred
+ * to by their index in {@link #getTeam(int)}.
+ * 
+ * A delta is immutable.
+ */
+public final class StepDelta {
+
+	/**
+	 * Collects the changes during a step. The columns are reused from step to
+	 * step, {@link #build(int)} copies them into a new delta.
+	 */
+	static class Builder {
+
+		private Team[] teams;
+
+		private int[] scores;
+
+		private int[] messages, messageBytes;
+
+		private int moved = 0;
+
+		private int[] movedTeams = new int[64], movedIds = new int[64],
+				movedXs = new int[64], movedYs = new int[64];
+
+		private float[] movedOffsetsX = new float[64], movedOffsetsY = new float[64];
+
+		private int spawned = 0;
+
+		private int[] spawnTeams = new int[8], spawnIds = new int[8],
+				spawnXs = new int[8], spawnYs = new int[8];
+
+		private int died = 0;
+
+		private int[] deathTeams = new int[8], deathIds = new int[8];
+
+		private int pickups = 0;
+
+		private int[] pickupTeams = new int[8], pickupIds = new int[8];
+
+		Builder(List<Team> teams) {
+
+			this.teams = teams.toArray(new Team[teams.size()]);
+
+			scores = new int[this.teams.length];
+			messages = new int[this.teams.length];
+			messageBytes = new int[this.teams.length];
+
+			for (int i = 0; i < scores.length; i++)
+				scores[i] = this.teams[i].getScore();
+
+		}
+
+		void position(Team team, int id, BodyPosition p) {
+
+			if (p == null)
+				return;
+
+			if (moved == movedIds.length) {
+				int length = moved * 2;
+				movedTeams = Arrays.copyOf(movedTeams, length);
+				movedIds = Arrays.copyOf(movedIds, length);
+				movedXs = Arrays.copyOf(movedXs, length);
+				movedYs = Arrays.copyOf(movedYs, length);
+				movedOffsetsX = Arrays.copyOf(movedOffsetsX, length);
+				movedOffsetsY = Arrays.copyOf(movedOffsetsY, length);
+			}
+
+			movedTeams[moved] = indexOf(team);
+			movedIds[moved] = id;
+			movedXs[moved] = p.getX();
+			movedYs[moved] = p.getY();
+			movedOffsetsX[moved] = p.getOffsetX();
+			movedOffsetsY[moved] = p.getOffsetY();
+
+			moved++;
+
+		}
+
+		void spawn(Team team, int id, BodyPosition p) {
+
+			if (spawned == spawnIds.length) {
+				int length = spawned * 2;
+				spawnTeams = Arrays.copyOf(spawnTeams, length);
+				spawnIds = Arrays.copyOf(spawnIds, length);
+				spawnXs = Arrays.copyOf(spawnXs, length);
+				spawnYs = Arrays.copyOf(spawnYs, length);
+			}
+
+			spawnTeams[spawned] = indexOf(team);
+			spawnIds[spawned] = id;
+			spawnXs[spawned] = p.getX();
+			spawnYs[spawned] = p.getY();
+
+			spawned++;
+
+		}
+
+		void death(Team team, int id) {
+
+			if (died == deathIds.length) {
+				deathTeams = Arrays.copyOf(deathTeams, died * 2);
+				deathIds = Arrays.copyOf(deathIds, died * 2);
+			}
+
+			deathTeams[died] = indexOf(team);
+			deathIds[died] = id;
+
+			died++;
+
+		}
+
+		void pickup(Team team, int id) {
+
+			if (pickups == pickupIds.length) {
+				pickupTeams = Arrays.copyOf(pickupTeams, pickups * 2);
+				pickupIds = Arrays.copyOf(pickupIds, pickups * 2);
+			}
+
+			pickupTeams[pickups] = indexOf(team);
+			pickupIds[pickups] = id;
+
+			pickups++;
+
+		}
+
+		void message(Team team, int length) {
+
+			int index = indexOf(team);
+
+			if (index < 0)
+				return;
+
+			messages[index]++;
+			messageBytes[index] += length;
+
+		}
+
+		/**
+		 * Creates the delta of the step and clears the builder for the next
+		 * step.
+		 */
+		StepDelta build(int step) {
+
+			StepDelta delta = new StepDelta();
+
+			delta.step = step;
+			delta.teams = teams;
+
+			delta.movedTeams = Arrays.copyOf(movedTeams, moved);
+			delta.movedIds = Arrays.copyOf(movedIds, moved);
+			delta.movedXs = Arrays.copyOf(movedXs, moved);
+			delta.movedYs = Arrays.copyOf(movedYs, moved);
+			delta.movedOffsetsX = Arrays.copyOf(movedOffsetsX, moved);
+			delta.movedOffsetsY = Arrays.copyOf(movedOffsetsY, moved);
+
+			delta.spawnTeams = Arrays.copyOf(spawnTeams, spawned);
+			delta.spawnIds = Arrays.copyOf(spawnIds, spawned);
+			delta.spawnXs = Arrays.copyOf(spawnXs, spawned);
+			delta.spawnYs = Arrays.copyOf(spawnYs, spawned);
+
+			delta.deathTeams = Arrays.copyOf(deathTeams, died);
+			delta.deathIds = Arrays.copyOf(deathIds, died);
+
+			delta.pickupTeams = Arrays.copyOf(pickupTeams, pickups);
+			delta.pickupIds = Arrays.copyOf(pickupIds, pickups);
+
+			delta.scores = new int[teams.length];
+			delta.scoreChanged = new boolean[teams.length];
+
+			for (int i = 0; i < teams.length; i++) {
+				delta.scores[i] = teams[i].getScore();
+				delta.scoreChanged[i] = delta.scores[i] != scores[i];
+				scores[i] = delta.scores[i];
+			}
+
+			delta.messages = messages.clone();
+			delta.messageBytes = messageBytes.clone();
+
+			Arrays.fill(messages, 0);
+			Arrays.fill(messageBytes, 0);
+
+			moved = 0;
+			spawned = 0;
+			died = 0;
+			pickups = 0;
+
+			return delta;
+		}
+
+		private int indexOf(Team team) {
+
+			for (int i = 0; i < teams.length; i++)
+				if (teams[i] == team)
+					return i;
+
+			return -1;
+		}
+
+	}
+
+	private int step;
+
+	// shared by all the deltas of a game, never modified
+	private Team[] teams;
+
+	private int[] scores;
+
+	private boolean[] scoreChanged;
+
+	private int[] messages, messageBytes;
+
+	private int[] movedTeams, movedIds, movedXs, movedYs;
+
+	private float[] movedOffsetsX, movedOffsetsY;
+
+	private int[] spawnTeams, spawnIds, spawnXs, spawnYs;
+
+	private int[] deathTeams, deathIds;
+
+	private int[] pickupTeams, pickupIds;
+
+	private StepDelta() {
+
+	}
+
+	public int getStep() {
+		return step;
+	}
+
+	public int getTeamCount() {
+		return teams.length;
+	}
+
+	public Team getTeam(int team) {
+		return teams[team];
+	}
+
+	/**
+	 * @return the score of the team at the end of the step
+	 */
+	public int getScore(int team) {
+		return scores[team];
+	}
+
+	public boolean isScoreChanged(int team) {
+		return scoreChanged[team];
+	}
+
+	/**
+	 * @return the number of messages sent by the agents of the team in the
+	 *         step, a broadcast counts once for every receiver
+	 */
+	public int getMessageCount(int team) {
+		return messages[team];
+	}
+
+	public int getMessageBytes(int team) {
+		return messageBytes[team];
+	}
+
+	/**
+	 * @return the number of agents that have moved in the step
+	 */
+	public int getMovedCount() {
+		return movedIds.length;
+	}
+
+	public int getMovedTeam(int i) {
+		return movedTeams[i];
+	}
+
+	public int getMovedId(int i) {
+		return movedIds[i];
+	}
+
+	public int getMovedX(int i) {
+		return movedXs[i];
+	}
+
+	public int getMovedY(int i) {
+		return movedYs[i];
+	}
+
+	public float getMovedOffsetX(int i) {
+		return movedOffsetsX[i];
+	}
+
+	public float getMovedOffsetY(int i) {
+		return movedOffsetsY[i];
+	}
+
+	/**
+	 * @return the number of agents placed on the field in the step
+	 */
+	public int getSpawnCount() {
+		return spawnIds.length;
+	}
+
+	public int getSpawnTeam(int i) {
+		return spawnTeams[i];
+	}
+
+	public int getSpawnId(int i) {
+		return spawnIds[i];
+	}
+
+	public int getSpawnX(int i) {
+		return spawnXs[i];
+	}
+
+	public int getSpawnY(int i) {
+		return spawnYs[i];
+	}
+
+	/**
+	 * @return the number of dead agents removed from the field in the step
+	 */
+	public int getDeathCount() {
+		return deathIds.length;
+	}
+
+	public int getDeathTeam(int i) {
+		return deathTeams[i];
+	}
+
+	public int getDeathId(int i) {
+		return deathIds[i];
+	}
+
+	/**
+	 * @return the number of agents that have picked up a flag in the step
+	 */
+	public int getPickupCount() {
+		return pickupIds.length;
+	}
+
+	public int getPickupTeam(int i) {
+		return pickupTeams[i];
+	}
+
+	public int getPickupId(int i) {
+		return pickupIds[i];
+	}
+
+}
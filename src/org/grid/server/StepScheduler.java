@@ -0,0 +1,302 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the game loop at a fixed rate. Deadlines are computed from
+ * {@link System#nanoTime()} relative to the start of the loop, so the step
+ * rate does not drift because of rounding. Between steps the thread is parked
+ * until the next deadline.
+ * 
+ * When a step takes longer than the period the following deadlines are
+ * missed. What happens then is decided by the catch-up policy:
+ * 
+ * SKIP - the missed steps are dropped and the schedule restarts at the end of
+ * the late step (the game runs slower, as with a plain sleep),
+ * 
+ * BURST - the missed steps are run back to back until the loop is on schedule
+ * again, but at most <code>limit</code> of them, the rest are dropped.
+ * 
+ * The duration of every step and the lateness of its start are recorded in
+ * histograms that are reported periodically.
+ * 
+ * In batch mode (see {@link #setBatch(StepBarrier, int)}) there are no
+ * deadlines, the loop runs as fast as the clients acknowledge the steps.
+ */
+public class StepScheduler implements Runnable {
+
+	public static enum CatchUp {
+		SKIP, BURST
+	}
+
+	private Runnable task;
+
+	private long period;
+
+	private CatchUp catchUp = CatchUp.SKIP;
+
+	private int limit = 10;
+
+	private long reportInterval = 0;
+
+	private Histogram durations = new Histogram();
+
+	private Histogram lateness = new Histogram();
+
+	private long missed = 0, totalMissed = 0;
+
+	private long dropped = 0, totalDropped = 0;
+
+	private long steps = 0;
+
+	private volatile boolean stopped = false;
+
+	private StepBarrier barrier = null;
+
+	private long timeout = 0;
+
+	private long timeouts = 0;
+
+	public StepScheduler(Runnable task, int stepsPerSecond) {
+
+		this.task = task;
+		this.period = TimeUnit.SECONDS.toNanos(1) / Math.max(1, stepsPerSecond);
+
+	}
+
+	public void setCatchUp(CatchUp catchUp, int limit) {
+		this.catchUp = catchUp;
+		this.limit = Math.max(0, limit);
+	}
+
+	/**
+	 * Sets the interval of the statistics report in the log.
+	 * 
+	 * @param seconds
+	 *            the interval in seconds, 0 disables the report
+	 */
+	public void setReportInterval(int seconds) {
+		this.reportInterval = TimeUnit.SECONDS.toNanos(Math.max(0, seconds));
+	}
+
+	/**
+	 * Switches the scheduler to batch mode: instead of waiting for the next
+	 * deadline the next step starts as soon as all clients have acknowledged
+	 * the previous one or the timeout has passed.
+	 * 
+	 * @param barrier
+	 *            the barrier of the game
+	 * @param timeout
+	 *            the maximum time to wait for the clients in milliseconds
+	 */
+	public void setBatch(StepBarrier barrier, int timeout) {
+		this.barrier = barrier;
+		this.timeout = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout));
+	}
+
+	public long getPeriod() {
+		return period;
+	}
+
+	/**
+	 * Returns the histogram of step durations in nanoseconds since the last
+	 * report.
+	 */
+	public Histogram getDurations() {
+		return durations;
+	}
+
+	/**
+	 * Returns the histogram of the delay between the deadline and the actual
+	 * start of a step in nanoseconds since the last report.
+	 */
+	public Histogram getLateness() {
+		return lateness;
+	}
+
+	/**
+	 * Returns the total number of deadlines that were missed.
+	 */
+	public synchronized long getMissedDeadlines() {
+		return totalMissed;
+	}
+
+	/**
+	 * Returns the total number of steps that were dropped by the catch-up
+	 * policy.
+	 */
+	public synchronized long getDroppedSteps() {
+		return totalDropped;
+	}
+
+	public void stop() {
+		stopped = true;
+	}
+
+	@Override
+	public void run() {
+
+		long next = System.nanoTime();
+
+		long report = next + reportInterval;
+
+		long interval = next;
+
+		// the steps run back to back after an overrun belong to it, their
+		// deadlines are not counted as missed again
+		boolean catchingUp = false;
+
+		while (!stopped) {
+
+			if (barrier != null) {
+
+				int generation = barrier.getGeneration();
+
+				long start = System.nanoTime();
+
+				task.run();
+
+				long end = System.nanoTime();
+
+				durations.record(end - start);
+
+				if (barrier.getGeneration() == generation || barrier.getParties() == 0) {
+					// the game is paused or there are no agents in the game
+					// yet, continue at the normal speed
+					LockSupport.parkNanos(period);
+				} else {
+					steps++;
+
+					if (!barrier.await(timeout)) {
+						synchronized (this) {
+							timeouts++;
+						}
+					}
+				}
+
+				if (reportInterval > 0 && end - report >= 0) {
+					report(end - interval);
+					report = end + reportInterval;
+					interval = end;
+				}
+
+				continue;
+			}
+
+			long start = System.nanoTime();
+
+			lateness.record(start - next);
+
+			task.run();
+
+			long end = System.nanoTime();
+
+			durations.record(end - start);
+
+			steps++;
+
+			next += period;
+
+			if (end - next > 0) {
+
+				// the step has overrun its deadline, the next step starts
+				// immediately and the steps that are behind it are either run
+				// back to back or dropped
+				long behind = (end - next) / period;
+
+				long drop = catchUp == CatchUp.SKIP ? behind : Math.max(0, behind - limit);
+
+				if (catchUp == CatchUp.SKIP)
+					next = end;
+				else
+					next += drop * period;
+
+				synchronized (this) {
+					if (!catchingUp) {
+						missed++;
+						totalMissed++;
+					}
+					dropped += drop;
+					totalDropped += drop;
+				}
+
+				catchingUp = catchUp == CatchUp.BURST;
+
+			} else {
+				catchingUp = false;
+			}
+
+			if (reportInterval > 0 && end - report >= 0) {
+				report(end - interval);
+				report = end + reportInterval;
+				interval = end;
+			}
+
+			long remaining;
+
+			while (!stopped && (remaining = next - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(remaining);
+			}
+
+		}
+
+	}
+
+	private void report(long elapsed) {
+
+		long missed, dropped, timeouts;
+
+		synchronized (this) {
+			missed = this.missed;
+			dropped = this.dropped;
+			timeouts = this.timeouts;
+			this.missed = 0;
+			this.dropped = 0;
+			this.timeouts = 0;
+		}
+
+		double rate = steps * 1e9 / Math.max(1, elapsed);
+
+		if (barrier != null) {
+			Main.log("Batch mode: %.1f steps per second, step time p50 %.2f ms, p99 %.2f ms, max %.2f ms (%d steps, %d timeouts)",
+					rate, millis(durations.getPercentile(0.5)), millis(durations.getPercentile(0.99)),
+					millis(durations.getMax()), steps, timeouts);
+
+			durations.reset();
+			steps = 0;
+			return;
+		}
+
+		Main.log("Step time: p50 %.2f ms, p99 %.2f ms, max %.2f ms, p99 lateness %.2f ms (%d steps, %d missed deadlines, %d dropped)",
+				millis(durations.getPercentile(0.5)), millis(durations.getPercentile(0.99)),
+				millis(durations.getMax()), millis(lateness.getPercentile(0.99)), steps, missed, dropped);
+
+		durations.reset();
+		lateness.reset();
+		steps = 0;
+
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+}
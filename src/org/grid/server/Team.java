@@ -19,16 +19,19 @@ package org.grid.server;
 
 import java.awt.Color;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.grid.arena.Arena;
 import org.grid.server.Dispatcher.Client;
 import org.grid.server.Field.Body;
 import org.grid.server.Field.BodyPosition;
-import org.grid.server.Game.MessageContainter;
 
 
 public class Team {
@@ -91,15 +94,30 @@ public class Team {
 		
 	}
 	
-	private HashSet<Client> used = new HashSet<Client>();
+	private LinkedHashSet<Client> used = new LinkedHashSet<Client>();
 	
 	private ConcurrentLinkedQueue<Client> pool = new ConcurrentLinkedQueue<Client>();
 	
 	private LinkedList<Agent> removed = new LinkedList<Agent>();
+
+	private DeliveryWheel messages = new DeliveryWheel();
+
+	// lists that are reused in every step
+	private Vector<Client> remove = new Vector<Client>();
+
+	private Vector<Agent> moved = new Vector<Agent>();
+
+	private Vector<Agent> planned = new Vector<Agent>();
+
+	/**
+	 * Clients with a live agent, keyed by agent id. Written under the pool lock,
+	 * read without it by {@link #findById(int)}.
+	 */
+	private ConcurrentHashMap<Integer, Client> clients = new ConcurrentHashMap<Integer, Client>();
 	
 	private HashSet<Integer> allocatedIds = new HashSet<Integer>();
 	
-	private HashSet<Flag> flags = new HashSet<Flag>();
+	private LinkedHashSet<Flag> flags = new LinkedHashSet<Flag>();
 	
 	private String name, passphrase;
 	
@@ -109,6 +127,10 @@ public class Team {
 	
 	private int score = 0;
 	
+	private Random random = new Random();
+	
+	private AgentGrid grid = null;
+	
 	public Team(String name, Color color) {
 		
 		this.name = name;
@@ -127,6 +149,50 @@ public class Team {
 		this.passphrase = passphrase;
 	}
 
+	public void setRandom(Random random) {
+		this.random = random;
+	}
+
+	/**
+	 * Sets the spatial index of the agents of the team. It is kept up to
+	 * date by the movement and cleanup of the team.
+	 */
+	void setGrid(AgentGrid grid) {
+		this.grid = grid;
+	}
+	
+	/**
+	 * Updates the position of an agent in the spatial index.
+	 */
+	void index(Agent agent, Field field) {
+		
+		if (grid != null)
+			grid.update(agent, field.getX(agent), field.getY(agent));
+		
+	}
+	
+	void index(List<Agent> agents, Field field) {
+		
+		for (Agent a : agents)
+			index(a, field);
+		
+	}
+	
+	/**
+	 * Finds the agents of the team that are at most <code>range</code>
+	 * cells (L_inf distance) away from the given cell.
+	 * 
+	 * @return the number of agents added to the result
+	 */
+	int findNear(Field field, int x, int y, int range, List<Agent> result) {
+		
+		if (grid == null)
+			return 0;
+		
+		return grid.query(field, x, y, range, result);
+		
+	}
+
 	public Headquarters getHeadquarters() {
 		
 		return hq;
@@ -145,6 +211,22 @@ public class Team {
 		
 	}
 	
+	public int getScore() {
+		
+		return score;
+		
+	}
+	
+	/**
+	 * @return the flags of the team that have not been delivered to the
+	 *         headquarters yet
+	 */
+	public Set<Flag> getFlags() {
+		
+		return flags;
+		
+	}
+	
 	public Flag newFlag(float weight) {
 		
 		Flag f = new Flag(Arena.TILE_FLAG, this, weight);
@@ -161,13 +243,25 @@ public class Team {
 			
 			Client client = pool.poll();
 			
+			// a client that has disconnected since it was pooled is dropped
+			while (client != null && client.isTerminated())
+				client = pool.poll();
+			
 			if (client == null)
 				return null;
 			
 			Agent agt = new Agent(this, getUniqueId());
 			
 			client.setAgent(agt);
+			
+			// the client may have been closed while the agent was sent
+			if (client.isTerminated()) {
+				client.setAgent(null);
+				return null;
+			}
+			
 			used.add(client);
+			clients.put(agt.getId(), client);
 			
 			Main.log("New agent spawned for team: " + name + " (id: " + agt.getId() + ")");
 			
@@ -203,6 +297,7 @@ public class Team {
 			if (client.getAgent() != null) {
 				client.getAgent().die();
 				removed.add(client.getAgent());
+				clients.remove(client.getAgent().getId());
 			}
 			
 			// just in case ... remove from everywhere :)
@@ -226,10 +321,42 @@ public class Team {
 		
 	}
 
-	public void cleanup(Field field) {
+	/**
+	 * Returns the number of clients that control an agent and have confirmed
+	 * its initialization and marks them as parties of the given step barrier
+	 * generation.
+	 */
+	public int countActive(int generation) {
 		
 		synchronized (pool) {
-			Vector<Client> remove = new Vector<Client>();
+			
+			int count = 0;
+			
+			for (Client c : used) {
+				if (c.getAgent() != null && c.getStatus() == Dispatcher.Status.USED) {
+					c.count(generation);
+					count++;
+				}
+			}
+			
+			return count;
+		}
+		
+	}
+
+	/**
+	 * Removes the dead agents from the field and returns their clients to the
+	 * pool.
+	 * 
+	 * @param field
+	 *            the field
+	 * @param died
+	 *            the removed agents are added to this list
+	 */
+	public void cleanup(Field field, List<Agent> died) {
+		
+		synchronized (pool) {
+			remove.clear();
 			
 			for (Client c : used) {
 			
@@ -241,18 +368,38 @@ public class Team {
 				if (!c.getAgent().isAlive()) {
 
 					removed.add(c.getAgent());
+					clients.remove(c.getAgent().getId());
 					
-					c.setAgent(null);
 					remove.add(c);
 				}
 				
 			}
 			
-			used.removeAll(remove);
-			pool.addAll(remove);
+			// the clients are notified outside of the iteration, a client may
+			// be removed from the team meanwhile
+			for (int i = 0; i < remove.size(); i++) {
+				
+				Client c = remove.get(i);
+				
+				used.remove(c);
+				
+				if (c.getAgent() != null)
+					c.setAgent(null);
+				
+				if (!c.isTerminated())
+					pool.add(c);
+			}
+			
+			if (removed.isEmpty())
+				return;
 			
 			for (Agent a : removed) {
 				
+				died.add(a);
+				
+				if (grid != null)
+					grid.remove(a);
+				
 				BodyPosition pos = field.getPosition(a);
 				
 				field.removeBody(a);
@@ -268,18 +415,26 @@ public class Team {
 		}
 	}
 	
-	
+	/**
+	 * Moves all agents of the team.
+	 * 
+	 * @param field
+	 *            the field
+	 * @return the agents that have moved, the list is reused by the next call
+	 */
 	public List<Agent> move(Field field) {
 		
-		Vector<Agent> moved = new Vector<Agent>();
+		moved.clear();
 		
 		synchronized (pool) {
 
 			for (Client c : used) {
 			
 				if (c.getAgent() != null) {
-					if (c.getAgent().move(field))
+					if (c.getAgent().move(field)) {
 						moved.add(c.getAgent());
+						index(c.getAgent(), field);
+					}
 				}
 				
 			}
@@ -289,40 +444,107 @@ public class Team {
 		return moved;
 	}
 	
-	public void dispatch() {
+	/**
+	 * Plans the moves of all agents of the team (see
+	 * {@link Agent#plan(Field)}). The moves have to be committed in the order
+	 * of the returned list to get the same result as {@link #move(Field)}.
+	 * 
+	 * @param field
+	 *            the field
+	 * @return the agents of the team in the order of movement, the list is
+	 *         reused by the next call
+	 */
+	public List<Agent> plan(Field field) {
+		
+		planned.clear();
 		
 		synchronized (pool) {
 
 			for (Client c : used) {
 			
-				if (c.getAgent() != null) {
-					MessageContainter msg = c.getAgent().pullMessage();
-					if (msg != null) {
-						
-						Client cltto = findById(msg.getTo());
-						
-						if (cltto != null)
-							cltto.send(c.getAgent().getId(), msg.getMessage());
-						
-					}
+				Agent a = c.getAgent();
+				
+				if (a != null) {
+					a.plan(field);
+					planned.add(a);
 				}
+				
 			}
+
 		}
+	
+		return planned;
 	}
 	
-	public Client findById(int id) {
+	/**
+	 * Lists the agents of the team in the order of movement.
+	 * 
+	 * @param agents
+	 *            the list to fill, it is cleared first
+	 * @return the same list
+	 */
+	public List<Agent> getAgents(List<Agent> agents) {
 		
-		synchronized (pool) {
+		agents.clear();
 		
-			for (Client cl : used) {
-				
-				if (cl.getAgent() != null && cl.getAgent().getId() == id)
-					return cl;
+		synchronized (pool) {
+
+			for (Client c : used) {
+			
+				if (c.getAgent() != null)
+					agents.add(c.getAgent());
 				
 			}
-			
-			return null;
+
 		}
+	
+		return agents;
+	}
+	
+	/**
+	 * Schedules a message between two agents of the team for delivery.
+	 * 
+	 * @param sender
+	 *            the sending agent
+	 * @param to
+	 *            the id of the receiving agent
+	 * @param message
+	 *            the message
+	 * @param delay
+	 *            the number of steps the message is in transit
+	 */
+	public void schedule(Agent sender, int to, byte[] message, int delay) {
+		
+		messages.schedule(sender, to, message, delay);
+		
+	}
+	
+	/**
+	 * Delivers the messages that are due in the current step.
+	 */
+	public void dispatch() {
+		
+		messages.advance(this);
+		
+	}
+	
+	/**
+	 * @return the number of messages delivered in the last step
+	 */
+	public int getDeliveredMessages() {
+		return messages.getDelivered();
+	}
+	
+	/**
+	 * @return the total size of the messages in transit in bytes
+	 */
+	public long getQueuedMessageBytes() {
+		return messages.getQueuedBytes();
+	}
+	
+	public Client findById(int id) {
+		
+		return clients.get(id);
 		
 	}
 	
@@ -338,7 +560,7 @@ public class Team {
 		
 		while (true) {
 		
-		int id = Math.max(1, Math.min(MAX_ID, (int) (Math.random() * MAX_ID)));
+		int id = 1 + random.nextInt(MAX_ID);
 		
 			if (!allocatedIds.contains(id)) {
 				allocatedIds.add(id);
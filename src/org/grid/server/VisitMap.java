@@ -37,26 +37,45 @@ public class VisitMap implements Arena, Palette, GameListener {
 	
 	private int width, height;
 	
-	private Field field;
+	private Arena field;
 	
-	private Agent agent;
+	private Agent agent = null;
+	
+	private int id;
 	
 	private BodyPosition lastPosition = null;
 	
 	private int neighborhoodSize;
 	
 	public VisitMap(Field field, History history, Agent agent, int neighborhoodSize) {
+		this(field, agent.getId(), neighborhoodSize);
+		
+		this.agent = agent;
+		
+		setFromHistory(history, agent.getTeam(), agent.getId());
+	}
+	
+	/**
+	 * Creates an empty visit map of an agent that is filled by the position
+	 * events of the agent, e.g. from a {@link Replay}.
+	 * 
+	 * @param field
+	 *            the arena that provides the bodies
+	 * @param id
+	 *            the id of the agent
+	 * @param neighborhoodSize
+	 *            the size of the neighborhood that the agent sees
+	 */
+	public VisitMap(Arena field, int id, int neighborhoodSize) {
 		this.field = field;
 		this.width = field.getWidth();
 		this.height = field.getHeight();
 		
-		this.agent = agent;
+		this.id = id;
 		this.cells = new int[width * height];
 		Arrays.fill(cells, 0);
 		
 		this.neighborhoodSize = neighborhoodSize;
-		
-		setFromHistory(history, agent.getTeam(), agent.getId());
 	}
 	
 	public int getHeight() {
@@ -90,7 +109,10 @@ public class VisitMap implements Arena, Palette, GameListener {
 				markNeighborhood(p.getX(), p.getY());
 			}
 			
-			lastPosition = p;
+			if (lastPosition == null)
+				lastPosition = new BodyPosition(p);
+			else
+				lastPosition.set(p.getX(), p.getY(), p.getOffsetX(), p.getOffsetY());
 		}
 		
 		
@@ -136,10 +158,20 @@ public class VisitMap implements Arena, Palette, GameListener {
 
 	}
 
+	@Override
+	public void spawn(Team team, int id, BodyPosition p) {
+
+	}
+
+	@Override
+	public void death(Team team, int id) {
+
+	}
+
 	@Override
 	public void position(Team team, int id, BodyPosition p) {
 		
-		if (agent.getId() != id)
+		if (this.id != id)
 			return;
 		
 		if (lastPosition == null || !p.equals(lastPosition)) {
@@ -147,7 +179,12 @@ public class VisitMap implements Arena, Palette, GameListener {
 			cells[p.getY() * width + p.getX()]++;
 			markNeighborhood(p.getX(), p.getY());
 		}
-		lastPosition = p;
+		
+		// the position is reused by the game, keep a copy
+		if (lastPosition == null)
+			lastPosition = new BodyPosition(p);
+		else
+			lastPosition.set(p.getX(), p.getY(), p.getOffsetX(), p.getOffsetY());
 	}
 
 	private void markNeighborhood(int x, int y) {
@@ -173,6 +210,10 @@ public class VisitMap implements Arena, Palette, GameListener {
 
 	}
 	
+	/**
+	 * @return the agent or <code>null</code> if the map was not created for
+	 *         an agent of a running game
+	 */
 	public Agent getAgent() {
 		return agent;
 	}